@@ -0,0 +1,711 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+/**
+ * Differential regression suite for the decomposition engines, on reproducible synthetic signals of 10^3 up to
+ * 10^maxLog10Size samples.
+ * 
+ * For each signal, the suite checks that every engine with MUDDLEInverted semantics gives identical extents (or
+ * identical extrema at SCALE, for the engines that only report extrema), that every engine with Extrema (dilation)
+ * semantics gives identical extents, that the two kinds of extent agree away from the ends of the data (where only
+ * MUDDLEInverted extents are limited), that every findPeaks engine gives identical peaks, and that the histogram
+ * engines give identical histograms to the per-radius reference loops they replaced. It records the best time,
+ * throughput and bytes allocated (on the calling thread) for each engine.
+ * 
+ * Throughputs are machine-specific, so they are compared to a baseline file recorded on the same machine (in update
+ * mode), which must be given explicitly; a check without a baseline fails, rather than silently recording one. Since
+ * a single timing can easily be off by 30% on a busy machine, an engine's throughput has regressed if the geometric
+ * mean of its throughput ratios to the baseline, over all signals of at least MIN_CHECKED_SIZE samples (smaller
+ * signals are too noisy to time), is more than the tolerance fraction below 1. The suite fails (throws an exception,
+ * so that it fails the build when run with "mvn -P regression verify" in the benchmarks module) if any engines
+ * disagree, or if any throughput has regressed.
+ * 
+ * The suite is in the benchmarks module rather than the library, but in the library's package, so that it can
+ * compare the engines' package-private extent arrays.
+ */
+public class RegressionSuite {
+    /** The maxRadius of the extent engines, and the radius of the findPeaks engines. */
+    static final int RADIUS = 64;
+    /** The scale of the engines that only report the extrema with extent >= scale. */
+    static final int SCALE = 16;
+    static final int MIN_CHECKED_SIZE = 100_000;
+    static final double DEFAULT_TOLERANCE = 0.3;
+    private static final long SEED = 0x5EED;
+
+    /** The synthetic signal shapes. */
+    enum Signal {
+        /** Utils.createRandomData: a noisy sine wave with a period of 50 samples. */
+        RANDOM,
+        /** A smooth sine wave with a period of 1000 samples and a little noise, so extrema have large extents. */
+        RANDOM_SMOOTH,
+        /** A random walk quantized to a few levels, with runs of repeated values, so most extrema are ties. */
+        PLATEAUS,
+        /** A monotonically increasing ramp (no extrema except at the ends). */
+        RAMP_UP,
+        /** A monotonically decreasing ramp. */
+        RAMP_DOWN,
+        /** Uniform white noise. */
+        NOISE,
+        /** RANDOM, with about 1% of samples replaced by NaN, +Infinity or -Infinity (some in runs). */
+        NON_FINITE
+    }
+
+    private final Map<String, Double> baseline;
+    private final double tolerance;
+    private final Map<String, Double> throughputs = new TreeMap<>();
+    private final List<String> mismatches = new ArrayList<>();
+    /** The sum of log(throughput / baseline throughput), and the number of terms, for each engine. */
+    private final Map<String, double[]> logRatios = new TreeMap<>();
+    /** The measurements of at least MIN_CHECKED_SIZE samples that have no baseline throughput. */
+    private final List<String> unbaselined = new ArrayList<>();
+    private final ForkJoinPool pool = new ForkJoinPool();
+    private boolean recording;
+
+    RegressionSuite(Map<String, Double> baseline, double tolerance) {
+        this.baseline = baseline;
+        this.tolerance = tolerance;
+    }
+
+    /** Create a synthetic signal, reproducibly from the seed. */
+    static float[] createSignal(Signal signal, int len, long seed) {
+        Random random = new Random(seed);
+        float[] data = new float[len];
+        switch (signal) {
+        case RANDOM:
+            return Utils.createRandomData(len, seed);
+        case RANDOM_SMOOTH:
+            return Utils.createRandomData(len, /* period = */1000, /* periodRandomSkewFactor = */0.05,
+                    /* amplitudeNoiseFactor = */0.01, random);
+        case PLATEAUS:
+            int level = 0;
+            for (int i = 0; i < len;) {
+                level = Math.max(-4, Math.min(4, level + random.nextInt(3) - 1));
+                for (int runEnd = Math.min(len, i + 1 + random.nextInt(20)); i < runEnd; i++) {
+                    data[i] = level;
+                }
+            }
+            return data;
+        case RAMP_UP:
+        case RAMP_DOWN:
+            for (int i = 0; i < len; i++) {
+                data[i] = signal == Signal.RAMP_UP ? i : len - i;
+            }
+            return data;
+        case NOISE:
+            for (int i = 0; i < len; i++) {
+                data[i] = random.nextFloat();
+            }
+            return data;
+        case NON_FINITE:
+            data = Utils.createRandomData(len, seed);
+            float[] nonFinite = { Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY };
+            for (int i = 0; i < len / 100; i++) {
+                int t = random.nextInt(len);
+                float value = nonFinite[random.nextInt(nonFinite.length)];
+                for (int runEnd = Math.min(len, t + 1 + (random.nextInt(4) == 0 ? random.nextInt(5) : 0)); t < runEnd;
+                        t++) {
+                    data[t] = value;
+                }
+            }
+            return data;
+        default:
+            throw new IllegalArgumentException("Unknown signal: " + signal);
+        }
+    }
+
+    /**
+     * Run an engine on the signal (more than once for small signals, keeping the best time), print and record its
+     * time, throughput and allocation, and check its throughput against the baseline. Returns the engine's result.
+     */
+    private <T> T measure(String engine, Signal signal, float[] data, Supplier<T> run) {
+        int numRuns = data.length <= 100_000 ? 5 : data.length <= 1_000_000 ? 3 : 2;
+        T result = null;
+        long bestNanos = Long.MAX_VALUE, allocatedBytes = 0;
+        for (int i = 0; i < numRuns; i++) {
+            // Drop the previous run's result first, so that two results never have to fit in the heap at once
+            result = null;
+            long startAllocatedBytes = MUDDLEMetrics.allocatedBytes();
+            long startNanos = System.nanoTime();
+            result = run.get();
+            long nanos = System.nanoTime() - startNanos;
+            if (i == 0) {
+                allocatedBytes = MUDDLEMetrics.allocatedBytes() - startAllocatedBytes;
+            }
+            bestNanos = Math.min(bestNanos, nanos);
+        }
+        if (recording) {
+            String key = engine + "/" + signal + "/" + data.length;
+            double throughput = data.length * 1e9 / Math.max(bestNanos, 1);
+            throughputs.put(key, throughput);
+            Double baselineThroughput = baseline.get(key);
+            String comparison = "";
+            if (baselineThroughput == null) {
+                if (data.length >= MIN_CHECKED_SIZE) {
+                    unbaselined.add(key);
+                }
+            } else {
+                double ratio = throughput / baselineThroughput;
+                comparison = String.format(Locale.ROOT, "%6.2fx baseline", ratio);
+                if (data.length >= MIN_CHECKED_SIZE) {
+                    double[] sum = logRatios.computeIfAbsent(engine, e -> new double[2]);
+                    sum[0] += Math.log(ratio);
+                    sum[1]++;
+                }
+            }
+            System.out.println(String.format(Locale.ROOT, "%-13s %10d  %-35s %9.3f ms %9.2f Msamples/s %10.2f MB  %s",
+                    signal, data.length, engine, bestNanos * 1e-6, throughput * 1e-6, allocatedBytes / 1048576.0,
+                    comparison));
+        }
+        return result;
+    }
+
+    private void check(boolean ok, String what, Signal signal, int length) {
+        if (!ok) {
+            String mismatch = signal + "/" + length + ": " + what;
+            mismatches.add(mismatch);
+            System.out.println("MISMATCH: " + mismatch);
+        }
+    }
+
+    /** The engines whose throughput has regressed, with their mean throughput ratio to the baseline. */
+    List<String> regressions() {
+        List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, double[]> ent : logRatios.entrySet()) {
+            double meanRatio = Math.exp(ent.getValue()[0] / ent.getValue()[1]);
+            String line = String.format(Locale.ROOT, "%s: %.2fx baseline throughput", ent.getKey(), meanRatio);
+            System.out.println(line);
+            if (meanRatio < 1.0 - tolerance) {
+                regressions.add(line);
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * Run and cross-check every engine on one signal. Each engine's result is only kept until it has been checked
+     * (the phases are in separate methods, so that their results are unreachable once they return), so that signals
+     * of 10^8 samples fit in the heap.
+     */
+    void run(Signal signal, int length) throws IOException {
+        float[] data = createSignal(signal, length, SEED + length);
+        FusedExtents fusedDilation = runExtents(signal, data);
+        runPeaks(signal, data, fusedDilation);
+    }
+
+    /** Run the engines that compute extents, returning the dilation extents for the peak finders. */
+    private FusedExtents runExtents(Signal signal, float[] data) throws IOException {
+        int[] extent = runInverted(signal, data);
+        return runDilation(signal, data, extent);
+    }
+
+    /** Run the engines with MUDDLEInverted semantics, returning the extents. */
+    private int[] runInverted(Signal signal, float[] data) throws IOException {
+        int n = data.length;
+        MUDDLEInverted probing = measure("MUDDLEInverted.probing", signal, data,
+                () -> new MUDDLEInverted(data, RADIUS, MUDDLEInverted.ExtentAlgorithm.RADIUS_PROBING));
+        FusedExtents fusedInverted = measure("FusedExtents.ofInverted", signal, data,
+                () -> FusedExtents.ofInverted(data, RADIUS));
+        int[] extent = probing.extent;
+        check(firstMismatch(extent, t -> Math.abs(fusedInverted.signedExtent(t))) < 0,
+                "FusedExtents.ofInverted extents differ from probing", signal, n);
+        check(Arrays.equals(extent, measure("MUDDLEInverted.nearestDominator", signal, data,
+                () -> new MUDDLEInverted(data, RADIUS, MUDDLEInverted.ExtentAlgorithm.NEAREST_DOMINATOR)).extent),
+                "nearestDominator extents differ from probing", signal, n);
+        check(Arrays.equals(extent, measure("ParallelMUDDLE.decompose", signal, data,
+                () -> new ParallelMUDDLE(pool).decompose(data, RADIUS)).extent),
+                "ParallelMUDDLE extents differ from probing", signal, n);
+        check(Arrays.equals(extent, measure("MUDDLEStream", signal, data, () -> {
+            int[] ext = new int[n];
+            MUDDLEStream stream = new MUDDLEStream(RADIUS, (t, value, e, extremumType) -> ext[(int) t] = e);
+            stream.push(data);
+            stream.close();
+            return ext;
+        })), "MUDDLEStream extents differ from probing", signal, n);
+        int[][] extremaAtScale = extremaAtScale(data, extent);
+        check(matches(extent, extremaAtScale, measure("MultiChannelMUDDLE.decompose", signal, data,
+                () -> new MultiChannelMUDDLE(pool).decompose(new float[][] { data }, RADIUS, SCALE)[0])),
+                "MultiChannelMUDDLE differs from probing", signal, n);
+        Path float32File = Files.createTempFile("muddle-regression", ".f32");
+        try {
+            Utils.writeFloat32(float32File.toString(), data);
+            check(Arrays.deepEquals(extremaAtScale, measure("OutOfCoreMUDDLE.decompose", signal, data,
+                    () -> decomposeOutOfCore(float32File.toString()))), "OutOfCoreMUDDLE extrema differ from probing",
+                    signal, n);
+        } finally {
+            Files.delete(float32File);
+        }
+        check(Arrays.deepEquals(extremaAtScale, measure("ExtremumPublisher", signal, data, () -> publish(data))),
+                "ExtremumPublisher extrema differ from probing", signal, n);
+
+        // Histograms of MUDDLEInverted extents
+        float[] separationHist = measure("reference.separationHist", signal, data,
+                () -> referenceSeparationHist(data, extent));
+        check(Arrays.equals(separationHist, measure("MUDDLEInverted.produceExtentHist", signal, data,
+                probing::produceExtentHist)), "ScaleHistogram separation histogram differs from reference", signal, n);
+        check(Arrays.equals(separationHist, measure("ParallelMUDDLE.scaleHistogram", signal, data,
+                () -> new ParallelMUDDLE(pool).scaleHistogram(probing)).harmonicSeparationHist()),
+                "ParallelMUDDLE separation histogram differs from reference", signal, n);
+        check(Arrays.equals(separationHist, measure("FusedExtents.produceExtentHist", signal, data,
+                fusedInverted::produceExtentHist)), "FusedExtents separation histogram differs from reference",
+                signal, n);
+        float[] alternationHist = measure("reference.alternationHist", signal, data,
+                () -> referenceAlternationHist(data, extent));
+        check(Arrays.equals(alternationHist, measure("MUDDLEInverted.produceAltFracHist", signal, data,
+                probing::produceAltFracHist).alternationHist),
+                "ScaleHistogram alternation histogram differs from reference", signal, n);
+        check(Arrays.equals(alternationHist, measure("FusedExtents.produceAltFracHist", signal, data,
+                fusedInverted::produceAltFracHist).alternationHist),
+                "FusedExtents alternation histogram differs from reference", signal, n);
+        return extent;
+    }
+
+    private static boolean matches(int[] extent, int[][] extremaAtScale, MultiChannelMUDDLE.ChannelResult channel) {
+        return Arrays.equals(extent, channel.extent) && Arrays.equals(extremaAtScale[0], channel.minIdxs)
+                && Arrays.equals(extremaAtScale[1], channel.maxIdxs);
+    }
+
+    /**
+     * Run the engines with Extrema (dilation) semantics, checking the dilation extents against the MUDDLEInverted
+     * extents away from the ends of the data. Returns the FusedExtents.ofDilation extents.
+     */
+    private FusedExtents runDilation(Signal signal, float[] data, int[] extent) {
+        int n = data.length;
+        int[][] dilationExtents = measureDilationExtents(signal, data);
+        int[] minExtent = dilationExtents[0], maxExtent = dilationExtents[1];
+        FusedExtents fusedDilation = measure("FusedExtents.ofDilation", signal, data,
+                () -> FusedExtents.ofDilation(data, RADIUS));
+        check(firstMismatch(minExtent, t -> fusedDilation.extent(t, /* isMax = */false)) < 0
+                && firstMismatch(maxExtent, t -> fusedDilation.extent(t, /* isMax = */true)) < 0,
+                "FusedExtents.ofDilation extents differ from Extrema", signal, n);
+        float[] dilationAlternationHist = measure("reference.dilationAlternationHist", signal, data,
+                () -> referenceDilationAlternationHist(minExtent, maxExtent));
+        check(Arrays.equals(dilationAlternationHist, measure("RadiusEstimator.alternationHistogram", signal, data,
+                () -> RadiusEstimator.alternationHistogram(data, RADIUS))),
+                "RadiusEstimator alternation histogram differs from reference", signal, n);
+        check(Arrays.equals(dilationAlternationHist, measure("FusedExtents.dilationAltFracHist", signal,
+                data, fusedDilation::produceAltFracHist).alternationHist),
+                "FusedExtents dilation alternation histogram differs from reference", signal, n);
+
+        // Away from the ends of the data, a MUDDLEInverted extent is the dilation extent of the same type (except
+        // around NaN, which dominates every point in MUDDLEInverted, but no point in Extrema)
+        int interiorMismatch = firstMismatch(extent, t -> t < RADIUS || t >= n - 1 - RADIUS ? extent[t]
+                : data[t] > data[t + 1] ? maxExtent[t] : data[t] < data[t + 1] ? minExtent[t] : 0);
+        check(signal == Signal.NON_FINITE || interiorMismatch < 0,
+                "MUDDLEInverted and Extrema extents differ at " + interiorMismatch, signal, n);
+
+        return fusedDilation;
+    }
+
+    /**
+     * Run the peak finders, checking them against MUDDLE.findPeaks. The PeakPyramid is built after the reference
+     * peaks, and dropped before the PeakWorkspace is allocated, since each takes several times the size of the data.
+     */
+    private void runPeaks(Signal signal, float[] data, FusedExtents fusedDilation) {
+        int n = data.length;
+        // A NaN is an extremum of both types that is never dominated, so it is often adjacent to another extremum of
+        // the same type, with no gap between them to span, and MUDDLE.findPeaks(data, radius, true) then throws
+        boolean[] spanGapsValues = signal == Signal.NON_FINITE ? new boolean[] { false }
+                : new boolean[] { false, true };
+        int[][][] peaks = new int[spanGapsValues.length][][];
+        for (int i = 0; i < spanGapsValues.length; i++) {
+            boolean spanGaps = spanGapsValues[i];
+            String suffix = spanGaps ? "(spanGaps)" : "";
+            int[][] spanGapsPeaks = peaks[i] = measure("MUDDLE.findPeaks" + suffix, signal, data,
+                    () -> MUDDLE.findPeaks(data, RADIUS, spanGaps));
+            check(Arrays.deepEquals(spanGapsPeaks, measure("FusedExtents.findPeaks" + suffix, signal, data,
+                    () -> fusedDilation.findPeaks(RADIUS, spanGaps))), "FusedExtents peaks differ" + suffix, signal, n);
+            check(Arrays.deepEquals(spanGapsPeaks, measure("ParallelMUDDLE.findPeaks" + suffix, signal, data,
+                    () -> new ParallelMUDDLE(pool).findPeaks(data, RADIUS, spanGaps))),
+                    "ParallelMUDDLE peaks differ" + suffix, signal, n);
+        }
+        runPeakPyramid(signal, data, fusedDilation, spanGapsValues, peaks);
+
+        PeakWorkspace workspace = new PeakWorkspace(n);
+        int[] minIdxs = new int[n], maxIdxs = new int[n];
+        for (int i = 0; i < spanGapsValues.length; i++) {
+            boolean spanGaps = spanGapsValues[i];
+            String suffix = spanGaps ? "(spanGaps)" : "";
+            measure("PeakWorkspace.findPeaks" + suffix, signal, data, () -> {
+                workspace.findPeaks(data, RADIUS, spanGaps, minIdxs, maxIdxs);
+                return null;
+            });
+            check(Arrays.equals(peaks[i][0], Arrays.copyOf(minIdxs, workspace.getNumMinima()))
+                    && Arrays.equals(peaks[i][1], Arrays.copyOf(maxIdxs, workspace.getNumMaxima())),
+                    "PeakWorkspace peaks differ" + suffix, signal, n);
+            if (!spanGaps && signal != Signal.NON_FINITE) {
+                // MinMaxPyramid rejects NaN
+                check(Arrays.deepEquals(peaks[i], measure("MinMaxPyramid.findPeaks", signal, data,
+                        () -> new MinMaxPyramid(data).findPeaks(RADIUS))), "MinMaxPyramid peaks differ", signal, n);
+            }
+        }
+    }
+
+    /** Build a PeakPyramid, and check its extents and peaks, returning before anything else is allocated. */
+    private void runPeakPyramid(Signal signal, float[] data, FusedExtents fusedDilation, boolean[] spanGapsValues,
+            int[][][] peaks) {
+        int n = data.length;
+        PeakPyramid pyramid = measure("PeakPyramid.new", signal, data, () -> new PeakPyramid(data, RADIUS));
+        check(firstMismatch(pyramid.minExtent, t -> fusedDilation.extent(t, /* isMax = */false)) < 0
+                && firstMismatch(pyramid.maxExtent, t -> fusedDilation.extent(t, /* isMax = */true)) < 0,
+                "PeakPyramid extents differ from FusedExtents.ofDilation", signal, n);
+        for (int i = 0; i < spanGapsValues.length; i++) {
+            boolean spanGaps = spanGapsValues[i];
+            String suffix = spanGaps ? "(spanGaps)" : "";
+            check(Arrays.deepEquals(peaks[i],
+                    measure("PeakPyramid.findPeaks" + suffix, signal, data, () -> pyramid.findPeaks(RADIUS, spanGaps))),
+                    "PeakPyramid peaks differ" + suffix, signal, n);
+        }
+    }
+
+    /**
+     * The minimum extents (in result[0]) and maximum extents (in result[1]) from Extrema.dilateTo, without keeping the
+     * rest of the Extrema state.
+     */
+    private int[][] measureDilationExtents(Signal signal, float[] data) {
+        Extrema[] extrema = measure("Extrema.dilateTo", signal, data, () -> {
+            Extrema minima = new Extrema(data, /* isMax = */false), maxima = new Extrema(data, /* isMax = */true);
+            minima.dilateTo(RADIUS, /* useDenseKernel = */true);
+            maxima.dilateTo(RADIUS, /* useDenseKernel = */true);
+            return new Extrema[] { minima, maxima };
+        });
+        return new int[][] { extrema[0].extent, extrema[1].extent };
+    }
+
+    /**
+     * The data indices of the local minima (in result[0]) and local maxima (in result[1]) with MUDDLEInverted extent
+     * >= SCALE.
+     */
+    private static int[][] extremaAtScale(float[] data, int[] extent) {
+        IndexList minIdxs = new IndexList(), maxIdxs = new IndexList();
+        for (int t = 0, tEnd = extent.length - 1; t < tEnd; t++) {
+            if (extent[t] >= SCALE) {
+                if (data[t] > data[t + 1]) {
+                    maxIdxs.add(t);
+                } else if (data[t] < data[t + 1]) {
+                    minIdxs.add(t);
+                }
+            }
+        }
+        return new int[][] { minIdxs.toIntArray(), maxIdxs.toIntArray() };
+    }
+
+    /** Growable list of data indices. */
+    private static class IndexList implements LongIndexSink {
+        long[] idxs = new long[16];
+        int size;
+
+        @Override
+        public void add(long index) {
+            if (size == idxs.length) {
+                idxs = Arrays.copyOf(idxs, 2 * size);
+            }
+            idxs[size++] = index;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        int[] toIntArray() {
+            int[] ints = new int[size];
+            for (int i = 0; i < size; i++) {
+                ints[i] = (int) idxs[i];
+            }
+            return ints;
+        }
+    }
+
+    /** The extrema at SCALE, from OutOfCoreMUDDLE, with a window size that is not a multiple of RADIUS. */
+    private static int[][] decomposeOutOfCore(String float32Filename) {
+        IndexList minIdxs = new IndexList(), maxIdxs = new IndexList();
+        new OutOfCoreMUDDLE(RADIUS, SCALE, 4 * 100_003).decompose(float32Filename, minIdxs, maxIdxs);
+        return new int[][] { minIdxs.toIntArray(), maxIdxs.toIntArray() };
+    }
+
+    /** The extrema at SCALE, from the events published by an ExtremumPublisher. */
+    private static int[][] publish(float[] data) {
+        IndexList minIdxs = new IndexList(), maxIdxs = new IndexList();
+        try (ExtremumPublisher publisher = new ExtremumPublisher(RADIUS, SCALE)) {
+            publisher.subscribe(new Flow.Subscriber<ExtremumEvent>() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    subscription.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(ExtremumEvent event) {
+                    (event.type == ExtremumEvent.Type.MAX ? maxIdxs : minIdxs).add(event.index);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    throw new IllegalStateException(throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            });
+            // Push in uneven chunks, as a live source would
+            for (int off = 0; off < data.length; off += 4099) {
+                publisher.push(data, off, Math.min(4099, data.length - off));
+            }
+        }
+        return new int[][] { minIdxs.toIntArray(), maxIdxs.toIntArray() };
+    }
+
+    /**
+     * The harmonic separation histogram of MUDDLEInverted extents, computed by the loop over every radius up to each
+     * extremum's extent that ScaleHistogram replaced (MUDDLEInverted.produceExtentHist(), before ScaleHistogram).
+     */
+    static float[] referenceSeparationHist(float[] data, int[] extent) {
+        int maxRadius = RADIUS, nBins = ScaleHistogram.NUM_SEPARATION_BINS;
+        int[] prevExtremumType = new int[maxRadius + 1];
+        int[] prevExtremumIdx = new int[maxRadius + 1];
+        float[] binRatio = new float[nBins];
+        float[] binRatioInv = new float[nBins];
+        for (int i = 0; i < nBins; i++) {
+            double ratio = Math.pow(2, (i + 1) * ScaleHistogram.SEPARATION_BIN_POW);
+            binRatio[i] = (float) ratio;
+            binRatioInv[i] = (float) (1.0 / ratio);
+        }
+        int[][] sepHist = new int[maxRadius + 1][nBins];
+        for (int t = 0, tEnd = data.length - 1; t < tEnd; t++) {
+            if (extent[t] > 0) {
+                int extremumType = data[t] > data[t + 1] ? 1 : data[t + 1] > data[t] ? -1 : 0;
+                for (int r = 1; r <= extent[t]; r++) {
+                    if (prevExtremumType[r] != 0 && extremumType == prevExtremumType[r]) {
+                        int sep = t - prevExtremumIdx[r];
+                        if (sep <= maxRadius) {
+                            float sepRatio = (float) sep / (float) r;
+                            for (int i = 0; i < nBins; i++) {
+                                if (sepRatio < binRatio[i]) {
+                                    sepHist[r][i]++;
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                    prevExtremumType[r] = extremumType;
+                    prevExtremumIdx[r] = t;
+                }
+            }
+        }
+        float[] resampledSepHist = new float[maxRadius + 1];
+        for (int i = 1; i < resampledSepHist.length; i++) {
+            for (int j = 0; j < nBins; j++) {
+                float scaledIdx = i * binRatioInv[j];
+                int scaledIdxInt = (int) scaledIdx;
+                float weight = scaledIdx - scaledIdxInt;
+                if (scaledIdxInt < maxRadius) {
+                    resampledSepHist[i] += (1.0f - weight) * sepHist[scaledIdxInt][j]
+                            + weight * sepHist[scaledIdxInt + 1][j];
+                }
+            }
+        }
+        float[] harmonicCombinedHist = new float[maxRadius / 2];
+        for (int i = 2; i < harmonicCombinedHist.length; i++) {
+            int ii = 2 * i - 2;
+            if (ii > 1 && ii < maxRadius - 1) {
+                harmonicCombinedHist[i] = resampledSepHist[i] + 0.25f * resampledSepHist[ii - 1]
+                        + 0.5f * resampledSepHist[ii] + 0.25f * resampledSepHist[ii + 1];
+            }
+        }
+        return harmonicCombinedHist;
+    }
+
+    /**
+     * The alternation histogram of MUDDLEInverted extents, computed by the per-radius loop of the original
+     * MUDDLEInverted.produceAltFracHist(): the number of extrema that follow an extremum of opposite type, divided by
+     * the number of extrema (counted in ints rather than floats, which are only exact up to 2^24).
+     */
+    static float[] referenceAlternationHist(float[] data, int[] extent) {
+        int[] numAlternating = new int[RADIUS + 1], numExtrema = new int[RADIUS + 1];
+        int[] prevExtremumType = new int[RADIUS + 1];
+        for (int t = 0, tEnd = data.length - 1; t < tEnd; t++) {
+            if (extent[t] > 0) {
+                float d = data[t], d1 = data[t + 1];
+                int extremumType = d > d1 ? 1 : d < d1 ? -1 : 0;
+                for (int r = 1; r <= extent[t]; r++) {
+                    if (prevExtremumType[r] != 0 && extremumType != prevExtremumType[r]) {
+                        numAlternating[r]++;
+                    }
+                    numExtrema[r]++;
+                    prevExtremumType[r] = extremumType;
+                }
+            }
+        }
+        float[] alternationHist = new float[RADIUS + 1];
+        for (int r = 1; r <= RADIUS; r++) {
+            alternationHist[r] = numExtrema[r] == 0 ? 0.0f : (float) numAlternating[r] / (float) numExtrema[r];
+        }
+        return alternationHist;
+    }
+
+    /**
+     * The alternation histogram of dilation extents, computed by the per-radius loop that ScaleHistogram replaced
+     * (RadiusEstimator.alternationHistogram(), before ScaleHistogram).
+     */
+    static float[] referenceDilationAlternationHist(int[] minExtent, int[] maxExtent) {
+        int[] prevExtremumType = new int[RADIUS + 1];
+        int[] numSame = new int[RADIUS + 1], numDiff = new int[RADIUS + 1];
+        for (int t = 0; t < minExtent.length; t++) {
+            for (int extremumType = -1; extremumType <= 1; extremumType += 2) {
+                for (int r = 1, extent = extremumType == 1 ? maxExtent[t] : minExtent[t]; r <= extent; r++) {
+                    if (prevExtremumType[r] != 0) {
+                        if (extremumType == prevExtremumType[r]) {
+                            numSame[r]++;
+                        } else {
+                            numDiff[r]++;
+                        }
+                    }
+                    prevExtremumType[r] = extremumType;
+                }
+            }
+        }
+        float[] alternationHist = new float[RADIUS + 1];
+        for (int r = 1; r <= RADIUS; r++) {
+            int denom = numSame[r] + numDiff[r];
+            alternationHist[r] = denom == 0 ? 0.0f : (float) numDiff[r] / (float) denom;
+        }
+        return alternationHist;
+    }
+
+    private interface IntToIntFunction {
+        int apply(int t);
+    }
+
+    /** The first index t where expected[t] != actual(t), or -1 if none. */
+    private static int firstMismatch(int[] expected, IntToIntFunction actual) {
+        for (int t = 0; t < expected.length; t++) {
+            if (expected[t] != actual.apply(t)) {
+                return t;
+            }
+        }
+        return -1;
+    }
+
+    /** Run every signal at every size from 10^3 to 10^maxLog10Size, after a warm-up pass that is not recorded. */
+    void run(int maxLog10Size) throws IOException {
+        for (Signal signal : Signal.values()) {
+            run(signal, 10_000);
+        }
+        recording = true;
+        for (int log10Size = 3; log10Size <= maxLog10Size; log10Size++) {
+            int size = (int) Math.pow(10, log10Size);
+            for (Signal signal : Signal.values()) {
+                run(signal, size);
+            }
+        }
+        pool.shutdown();
+    }
+
+    static Map<String, Double> loadBaseline(Path file) throws IOException {
+        Map<String, Double> baseline = new TreeMap<>();
+        if (Files.exists(file)) {
+            Properties properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+            for (String key : properties.stringPropertyNames()) {
+                baseline.put(key, Double.parseDouble(properties.getProperty(key)));
+            }
+        }
+        return baseline;
+    }
+
+    /** Write the throughputs (in samples per second) as the new baseline, in sorted order. */
+    void saveBaseline(Path file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("# RegressionSuite baseline throughputs (samples/sec), engine/signal/length = throughput\n");
+            writer.write("# java.version=" + System.getProperty("java.version") + ", availableProcessors="
+                    + Runtime.getRuntime().availableProcessors() + "\n");
+            for (Map.Entry<String, Double> ent : throughputs.entrySet()) {
+                writer.write(ent.getKey() + "=" + Math.round(ent.getValue()) + "\n");
+            }
+        }
+    }
+
+    /**
+     * Usage: RegressionSuite baselineFile [maxLog10Size [check|update]]
+     * 
+     * Runs the suite on signals of up to 10^maxLog10Size samples (default 8, which needs a heap of several GB). In
+     * check mode (the default), fails if any engines disagree, if the baseline file does not exist or has no
+     * throughput for some measurement (e.g. because it was recorded with a smaller maxLog10Size), or if any engine's
+     * mean throughput is more than the tolerance fraction below the baseline (set with -Dmuddle.regression.tolerance,
+     * default 0.3). In update mode, writes the measured throughputs to the baseline file, if all engines agree; this
+     * is the only way a baseline is recorded.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: RegressionSuite baselineFile [maxLog10Size [check|update]]");
+            System.exit(1);
+        }
+        if (args[0].isEmpty() || args[0].startsWith("${")) {
+            // The baseline is machine-specific, so there is no default (Maven passes an unset property through)
+            throw new IllegalArgumentException("No baseline file given: set -Dregression.baseline=<file>");
+        }
+        Path baselineFile = Paths.get(args[0]);
+        int maxLog10Size = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        boolean update = args.length > 2 && args[2].equals("update");
+        if (!update && !Files.exists(baselineFile)) {
+            throw new IllegalStateException("Baseline file " + baselineFile
+                    + " does not exist: record it on this machine with -Dregression.mode=update");
+        }
+        double tolerance = Double.parseDouble(
+                System.getProperty("muddle.regression.tolerance", Double.toString(DEFAULT_TOLERANCE)));
+
+        RegressionSuite suite = new RegressionSuite(update ? new TreeMap<>() : loadBaseline(baselineFile), tolerance);
+        System.out.println("Extrema dense dilation kernel: " + (Extrema.isVectorized() ? "vector" : "scalar"));
+        suite.run(maxLog10Size);
+
+        if (!suite.mismatches.isEmpty()) {
+            throw new IllegalStateException(
+                    suite.mismatches.size() + " engine mismatches:\n" + String.join("\n", suite.mismatches));
+        }
+        if (update) {
+            if (baselineFile.toAbsolutePath().getParent() != null) {
+                Files.createDirectories(baselineFile.toAbsolutePath().getParent());
+            }
+            suite.saveBaseline(baselineFile);
+            System.out.println("All engines agree. Recorded baseline in " + baselineFile);
+            return;
+        }
+        if (!suite.unbaselined.isEmpty()) {
+            throw new IllegalStateException(suite.unbaselined.size() + " measurements have no baseline in "
+                    + baselineFile + " (re-record it with -Dregression.mode=update), e.g. "
+                    + suite.unbaselined.get(0));
+        }
+        List<String> regressions = suite.regressions();
+        if (!regressions.isEmpty()) {
+            throw new IllegalStateException(
+                    regressions.size() + " throughput regressions:\n" + String.join("\n", regressions));
+        }
+        System.out.println("All engines agree, and no throughput regressions");
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler enabled, so that allocation rates are reported alongside timings. Takes
+ * the standard JMH command line options, e.g. "java -jar benchmarks.jar MUDDLEBenchmark.findPeaks -p radius=36".
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder() //
+                .parent(new CommandLineOptions(args)) //
+                .addProfiler(GCProfiler.class) //
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.lukehutch.muddle.Extrema;
+import io.github.lukehutch.muddle.MUDDLE;
+
+/** Benchmarks for Extrema and MUDDLE. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MUDDLEBenchmark {
+    @Param({ "8", "36", "300" })
+    public int radius;
+
+    /** Dilate the maxima of the signal up to radius. */
+    @Benchmark
+    public Extrema dilate(Signal signal) {
+        Extrema maxima = new Extrema(signal.data, /* isMax = */true);
+        for (int r = 1; r <= radius; r++) {
+            maxima.dilate();
+        }
+        return maxima;
+    }
+
+    /** Dilate the maxima of the signal up to radius, using the branch-free kernel while the maxima are dense. */
+    @Benchmark
+    public Extrema dilateDense(Signal signal) {
+        Extrema maxima = new Extrema(signal.data, /* isMax = */true);
+        maxima.dilateTo(radius, /* useDenseKernel = */true);
+        return maxima;
+    }
+
+    /**
+     * Same as dilateDense, in a JVM with the jdk.incubator.vector module, so that the dense dilations use the vector
+     * kernel (see Extrema.isVectorized()).
+     */
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+    public Extrema dilateDenseVector(Signal signal) {
+        Extrema maxima = new Extrema(signal.data, /* isMax = */true);
+        maxima.dilateTo(radius, /* useDenseKernel = */true);
+        return maxima;
+    }
+
+    @Benchmark
+    public int[][] findPeaks(Signal signal) {
+        return MUDDLE.findPeaks(signal.data, radius, /* spanGaps = */false);
+    }
+
+    @Benchmark
+    public int[][] findPeaksSpanGaps(Signal signal) {
+        return MUDDLE.findPeaks(signal.data, radius, /* spanGaps = */true);
+    }
+
+    @Benchmark
+    public int[][] findTopKPeaks(Signal signal) {
+        return MUDDLE.findTopKPeaks(signal.data, 20);
+    }
+
+    @Benchmark
+    public float[] alternatingExtremumTypeFractionHistogram(Signal signal) {
+        return MUDDLE.generateAlternatingExtremumTypeFractionHistogram(signal.data, radius);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.lukehutch.muddle.MUDDLEInverted;
+import io.github.lukehutch.muddle.RadiusEstimate;
+
+/** Benchmarks for MUDDLEInverted. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MUDDLEInvertedBenchmark {
+    @Param({ "8", "36", "300" })
+    public int maxRadius;
+
+    private MUDDLEInverted muddle;
+
+    @Setup
+    public void decompose(Signal signal) {
+        muddle = new MUDDLEInverted(signal.data, maxRadius);
+    }
+
+    @Benchmark
+    public MUDDLEInverted constructor(Signal signal) {
+        return new MUDDLEInverted(signal.data, maxRadius);
+    }
+
+    @Benchmark
+    public MUDDLEInverted constructorNearestDominator(Signal signal) {
+        return new MUDDLEInverted(signal.data, maxRadius, MUDDLEInverted.ExtentAlgorithm.NEAREST_DOMINATOR);
+    }
+
+    @Benchmark
+    public RadiusEstimate produceAltFracHist() {
+        return muddle.produceAltFracHist();
+    }
+
+    @Benchmark
+    public float[] produceExtentHist() {
+        return muddle.produceExtentHist();
+    }
+}
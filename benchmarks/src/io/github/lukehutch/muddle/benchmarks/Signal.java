@@ -0,0 +1,78 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import io.github.lukehutch.muddle.Utils;
+
+/**
+ * Seeded synthetic signals shared by all benchmarks, so that results are reproducible across runs.
+ */
+@State(Scope.Benchmark)
+public class Signal {
+    static final long SEED = 0x5eed;
+
+    @Param({ "10000", "1000000" })
+    public int length;
+
+    /**
+     * smooth: sine wave with little noise (long-lived extrema, the worst case for the dilation loops);<br>
+     * ppg: the default Utils.createRandomData profile;<br>
+     * noise: noise-dominated signal (most extrema die at small radii).
+     */
+    @Param({ "smooth", "ppg", "noise" })
+    public String profile;
+
+    public float[] data;
+
+    private PrintStream stdout;
+
+    @Setup
+    public void createData() {
+        data = createData(length, profile);
+        // Some of the histogram generators print their results -- discard the output so that it isn't measured
+        stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    @TearDown
+    public void restoreStdout() {
+        System.setOut(stdout);
+    }
+
+    static float[] createData(int length, String profile) {
+        Random random = new Random(SEED);
+        switch (profile) {
+        case "smooth":
+            return Utils.createRandomData(length, /* period = */500, 0.05, /* amplitudeNoiseFactor = */0.01, random);
+        case "ppg":
+            return Utils.createRandomData(length, SEED);
+        case "noise":
+            return Utils.createRandomData(length, /* period = */50, 0.05, /* amplitudeNoiseFactor = */20.0, random);
+        default:
+            throw new IllegalArgumentException("Unknown profile: " + profile);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.stream.Stream;
+
+/**
+ * Batch decomposition of every recording in a directory tree within one JVM, so that JVM startup and JIT warm-up are
+ * paid once per batch rather than once per file.
+ * 
+ * The batch runs as a pipeline: the calling thread walks the directory tree, I/O threads load the recordings, and
+ * worker threads decompose each channel of each recording (as for MultiChannelMUDDLE) and write one CSV row per file.
+ * The stages are connected by bounded queues, so a stage that falls behind blocks the stage before it, and at most
+ * (queueCapacity + numIOThreads + numWorkers) loaded recordings are held in memory at once.
+ * 
+ * Recordings are recognized by file extension: .mat (all rows of the single array, as loaded by
+ * Utils.loadMatChannels), .txt and .csv (one sample per line, as loaded by Utils.loadData), and .f32 and .f64 (raw
+ * little-endian samples). A file that fails to load or decompose gets a CSV row with the error, and does not stop the
+ * batch.
+ * 
+ * Each CSV row reports the file's number of channels and samples, the number of local minima and maxima with extent
+ * >= scale (summed over channels), the time spent loading, waiting in the queue for a worker, and decomposing, the
+ * end-to-end latency from the start of loading to the end of decomposition, and the decomposition throughput.
+ * 
+ * If an index directory is given, the extents of each channel are also written to an ExtentIndexFile, so that the
+ * local minima and maxima at any scale <= maxRadius can be reloaded without decomposing the recording again. The
+ * index files of a recording at rootDir/path are written to indexDir/path.0.mudx, indexDir/path.1.mudx etc. (one per
+ * channel), and the row's index_prefix column gives indexDir/path.
+ */
+public class BatchRunner {
+    private final int maxRadius, scale;
+    private final int numIOThreads, numWorkers, queueCapacity;
+    /** The directory to write extent index files to, or null to not write them. */
+    private final Path indexDir;
+
+    static final String CSV_HEADER = "file,channels,samples,minima,maxima,load_ms,queue_ms,decompose_ms,latency_ms,"
+            + "samples_per_sec,index_prefix,error";
+    static final String INDEX_FILE_EXTENSION = ".mudx";
+
+    /** A recording, as it passes through the pipeline. */
+    private static class Job {
+        final Path path;
+        /** The index file path of the recording, without the channel number and extension, or null. */
+        Path indexPrefix;
+        float[][] channels;
+        Throwable error;
+        long loadStartNanos, loadEndNanos, decomposeStartNanos, decomposeEndNanos;
+        long numSamples;
+        int numChannels, numMinima, numMaxima;
+
+        Job(Path path) {
+            this.path = path;
+        }
+    }
+
+    /** Marks the end of a queue. */
+    private static final Job END = new Job(null);
+
+    /** Totals for a batch. */
+    public static class Summary {
+        public int numFiles, numFailed;
+        public long numSamples;
+        public long wallNanos, totalLatencyNanos, maxLatencyNanos;
+
+        @Override
+        public String toString() {
+            double wallSecs = wallNanos * 1e-9;
+            return String.format(Locale.ROOT,
+                    "%d files (%d failed), %d samples in %.3f s: %.1f files/s, %.0f samples/s; "
+                            + "latency mean %.3f ms, max %.3f ms",
+                    numFiles, numFailed, numSamples, wallSecs, numFiles / wallSecs, numSamples / wallSecs,
+                    numFiles == 0 ? 0.0 : totalLatencyNanos * 1e-6 / numFiles, maxLatencyNanos * 1e-6);
+        }
+    }
+
+    public BatchRunner(int maxRadius, int scale, int numIOThreads, int numWorkers, int queueCapacity) {
+        this(maxRadius, scale, numIOThreads, numWorkers, queueCapacity, null);
+    }
+
+    /** As BatchRunner(...), but also write the extents of each channel to an index file under indexDir. */
+    public BatchRunner(int maxRadius, int scale, int numIOThreads, int numWorkers, int queueCapacity,
+            Path indexDir) {
+        if (maxRadius < 0) {
+            throw new IllegalArgumentException("maxRadius must be non-negative");
+        }
+        if (numIOThreads < 1 || numWorkers < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("numIOThreads, numWorkers and queueCapacity must be at least 1");
+        }
+        this.maxRadius = maxRadius;
+        this.scale = scale;
+        this.numIOThreads = numIOThreads;
+        this.numWorkers = numWorkers;
+        this.queueCapacity = queueCapacity;
+        this.indexDir = indexDir;
+    }
+
+    /** The index file of one channel of a recording. */
+    static Path indexFile(Path indexPrefix, int channel) {
+        return indexPrefix.resolveSibling(indexPrefix.getFileName() + "." + channel + INDEX_FILE_EXTENSION);
+    }
+
+    /** Returns true if the file is a recording that the batch runner can load. */
+    static boolean isRecording(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        return name.endsWith(".mat") || name.endsWith(".txt") || name.endsWith(".csv") || name.endsWith(".f32")
+                || name.endsWith(".f64");
+    }
+
+    /** Load the channels of a recording. */
+    static float[][] load(Path path) {
+        String filename = path.toString(), name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".mat")) {
+            return Utils.loadMatChannels(filename);
+        } else if (name.endsWith(".f32")) {
+            return new float[][] { Utils.loadFloat32(filename) };
+        } else if (name.endsWith(".f64")) {
+            return new float[][] { Utils.loadFloat64(filename) };
+        } else {
+            return new float[][] { Utils.loadData(filename) };
+        }
+    }
+
+    /**
+     * Decompose every recording under root (in directory walk order, though rows are written in completion order),
+     * writing a CSV header and one row per recording to csv. Returns the totals for the batch.
+     */
+    public Summary run(Path root, Writer csv) throws IOException, InterruptedException {
+        BlockingQueue<Job> pathQueue = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Job> loadedQueue = new ArrayBlockingQueue<>(queueCapacity);
+        Summary summary = new Summary();
+        csv.write(CSV_HEADER + "\n");
+        long startNanos = System.nanoTime();
+
+        Thread[] ioThreads = new Thread[numIOThreads];
+        for (int i = 0; i < numIOThreads; i++) {
+            ioThreads[i] = startThread("muddle-io-" + i, () -> {
+                for (Job job; (job = pathQueue.take()) != END;) {
+                    job.loadStartNanos = System.nanoTime();
+                    try {
+                        job.channels = load(job.path);
+                    } catch (Throwable e) {
+                        job.error = e;
+                    }
+                    job.loadEndNanos = System.nanoTime();
+                    loadedQueue.put(job);
+                }
+            });
+        }
+        Thread[] workers = new Thread[numWorkers];
+        IOException[] writeError = new IOException[1];
+        for (int i = 0; i < numWorkers; i++) {
+            workers[i] = startThread("muddle-worker-" + i, () -> {
+                for (Job job; (job = loadedQueue.take()) != END;) {
+                    decompose(job);
+                    synchronized (summary) {
+                        try {
+                            writeRow(job, csv, summary);
+                        } catch (IOException e) {
+                            writeError[0] = e;
+                        }
+                    }
+                }
+            });
+        }
+
+        // Walk the tree on the calling thread, blocking while the I/O threads are behind
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Iterator<Path> iter = paths.iterator(); iter.hasNext();) {
+                Path path = iter.next();
+                if (Files.isRegularFile(path) && isRecording(path)) {
+                    Job job = new Job(path);
+                    if (indexDir != null) {
+                        // Mirror the tree under indexDir (root may itself be a recording)
+                        Path relativePath = root.relativize(path);
+                        job.indexPrefix = indexDir.resolve(
+                                relativePath.toString().isEmpty() ? path.getFileName() : relativePath);
+                    }
+                    pathQueue.put(job);
+                }
+            }
+        } finally {
+            // Shut down each stage once the stage before it has finished, even if the walk failed
+            for (int i = 0; i < numIOThreads; i++) {
+                pathQueue.put(END);
+            }
+            for (Thread thread : ioThreads) {
+                thread.join();
+            }
+            for (int i = 0; i < numWorkers; i++) {
+                loadedQueue.put(END);
+            }
+            for (Thread thread : workers) {
+                thread.join();
+            }
+        }
+        if (writeError[0] != null) {
+            throw writeError[0];
+        }
+        csv.flush();
+        summary.wallNanos = System.nanoTime() - startNanos;
+        return summary;
+    }
+
+    private void decompose(Job job) {
+        job.decomposeStartNanos = System.nanoTime();
+        if (job.error == null) {
+            try {
+                job.numChannels = job.channels.length;
+                if (job.indexPrefix != null) {
+                    Files.createDirectories(job.indexPrefix.toAbsolutePath().getParent());
+                }
+                // Scratch buffers for the extent kernel, shared by the file's channels
+                int[][] buffers = new int[2][0];
+                for (int i = 0; i < job.channels.length; i++) {
+                    float[] channel = job.channels[i];
+                    MultiChannelMUDDLE.ChannelResult result = MultiChannelMUDDLE.decomposeChannel(channel, maxRadius,
+                            scale, buffers);
+                    job.numSamples += channel.length;
+                    job.numMinima += result.minIdxs.length;
+                    job.numMaxima += result.maxIdxs.length;
+                    if (job.indexPrefix != null) {
+                        ExtentIndexFile.write(indexFile(job.indexPrefix, i).toString(),
+                                new MUDDLEInverted(channel, maxRadius, result.extent));
+                    }
+                }
+            } catch (Throwable e) {
+                job.error = e;
+            }
+        }
+        // Release the samples before the row is written
+        job.channels = null;
+        job.decomposeEndNanos = System.nanoTime();
+    }
+
+    /** Write the CSV row for a job, and add it to the totals. Called with the summary locked. */
+    private static void writeRow(Job job, Writer csv, Summary summary) throws IOException {
+        long decomposeNanos = job.decomposeEndNanos - job.decomposeStartNanos;
+        long latencyNanos = job.decomposeEndNanos - job.loadStartNanos;
+        csv.write(String.format(Locale.ROOT, "%s,%d,%d,%d,%d,%.3f,%.3f,%.3f,%.3f,%.0f,%s,%s\n",
+                csvField(job.path.toString()), job.numChannels, job.numSamples, job.numMinima, job.numMaxima,
+                (job.loadEndNanos - job.loadStartNanos) * 1e-6, (job.decomposeStartNanos - job.loadEndNanos) * 1e-6,
+                decomposeNanos * 1e-6, latencyNanos * 1e-6,
+                decomposeNanos == 0 ? 0.0 : job.numSamples * 1e9 / decomposeNanos,
+                job.error == null && job.indexPrefix != null ? csvField(job.indexPrefix.toString()) : "",
+                job.error == null ? "" : csvField(job.error.toString())));
+        summary.numFiles++;
+        if (job.error != null) {
+            summary.numFailed++;
+        }
+        summary.numSamples += job.numSamples;
+        summary.totalLatencyNanos += latencyNanos;
+        summary.maxLatencyNanos = Math.max(summary.maxLatencyNanos, latencyNanos);
+    }
+
+    /** Quote a CSV field if it contains a comma, quote or line break. */
+    static String csvField(String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0
+                && field.indexOf('\r') < 0) {
+            return field;
+        }
+        return '"' + field.replace("\"", "\"\"") + '"';
+    }
+
+    /** A pipeline stage, which is stopped by interruption. */
+    private interface Stage {
+        void run() throws InterruptedException;
+    }
+
+    private static Thread startThread(String name, Stage stage) {
+        Thread thread = new Thread(() -> {
+            try {
+                stage.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Usage: BatchRunner rootDir output.csv [maxRadius [scale [numIOThreads [numWorkers [queueCapacity
+     * [indexDir]]]]]]
+     * 
+     * Writes one CSV row per recording under rootDir, and prints the totals for the batch. The output file should not
+     * be under rootDir, since .csv files are loaded as recordings. If indexDir is given, the extents of each channel
+     * are written to an extent index file under indexDir.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: BatchRunner rootDir output.csv "
+                    + "[maxRadius [scale [numIOThreads [numWorkers [queueCapacity [indexDir]]]]]]");
+            System.exit(1);
+        }
+        int numCPUs = Runtime.getRuntime().availableProcessors();
+        int maxRadius = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+        int scale = args.length > 3 ? Integer.parseInt(args[3]) : 36;
+        int numIOThreads = args.length > 4 ? Integer.parseInt(args[4]) : 2;
+        int numWorkers = args.length > 5 ? Integer.parseInt(args[5]) : numCPUs;
+        int queueCapacity = args.length > 6 ? Integer.parseInt(args[6]) : 2 * numWorkers;
+        Path indexDir = args.length > 7 ? Paths.get(args[7]) : null;
+        BatchRunner runner = new BatchRunner(maxRadius, scale, numIOThreads, numWorkers, queueCapacity, indexDir);
+        try (Writer csv = Files.newBufferedWriter(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+            System.out.println(runner.run(Paths.get(args[0]), csv));
+        }
+    }
+}
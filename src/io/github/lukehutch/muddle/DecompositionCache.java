@@ -0,0 +1,352 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Thread-safe cache of decompositions, for services that make many repeated or overlapping requests against the same
+ * recordings, varying only the radius and spanGaps.
+ * 
+ * Datasets are identified by a 64-bit hash of their contents (so a copy of a recording hits the same entry), and a
+ * hit is checked against the cached samples, so a hash collision is never mistaken for a hit. Each dataset's entry
+ * holds a PeakPyramid (dilation extents) and a MUDDLEInverted decomposition, each built on first use with
+ * maxRadius = max(radius, minMaxRadius). Any request with radius <= the cached maxRadius is then answered from the
+ * cached extents, without redoing any dilation, since the extents at a smaller radius are the cached extents capped
+ * at that radius. A request for a larger radius rebuilds the structure with at least twice the cached maxRadius.
+ * 
+ * Concurrent requests for the same structure are coalesced: the first request builds it on its own thread, and the
+ * others wait for the same CompletableFuture rather than building it again. Builds, and all other O[data.length] work
+ * (hashing, copying and comparing samples), run outside the cache's lock, so requests for other datasets are not
+ * blocked.
+ * 
+ * Entries are evicted in least-recently-used order once the total weight (the approximate size in bytes of the
+ * cached samples, counted from when an entry is added, and of the cached structures, including the range indices
+ * used for spanning gaps, counted once built) exceeds maxWeight.
+ * 
+ * The cache keeps its own copy of each dataset's samples, and builds the cached structures from that copy, so a
+ * caller may modify or reuse its array after a request without corrupting the cache.
+ */
+public class DecompositionCache {
+    private final long maxWeight;
+    private final int minMaxRadius;
+
+    // All fields below are guarded by the cache's monitor
+    /** Entries in access order, least recently used first. */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, /* accessOrder = */true);
+    private long totalWeight;
+    private long hits, misses, coalesced, evictions;
+
+    /** Cache up to maxWeight bytes of decompositions, building each with maxRadius of at least minMaxRadius. */
+    public DecompositionCache(long maxWeight, int minMaxRadius) {
+        if (maxWeight < 0 || minMaxRadius < 0) {
+            throw new IllegalArgumentException("maxWeight and minMaxRadius must be non-negative");
+        }
+        this.maxWeight = maxWeight;
+        this.minMaxRadius = minMaxRadius;
+    }
+
+    /** Cache up to maxWeight bytes of decompositions. */
+    public DecompositionCache(long maxWeight) {
+        this(maxWeight, 0);
+    }
+
+    /** A dataset's length and content hash. */
+    private static final class Key {
+        final int length;
+        final long hash;
+
+        Key(float[] data) {
+            long h = data.length;
+            for (float d : data) {
+                // floatToIntBits matches Arrays.equals(float[], float[]), which is used to check hits
+                h = (h + Float.floatToIntBits(d)) * 0x9E3779B97F4A7C15L;
+                h ^= h >>> 29;
+            }
+            this.length = data.length;
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && ((Key) obj).length == length && ((Key) obj).hash == hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(hash);
+        }
+    }
+
+    /** A structure that is being built, or has been built, for some maxRadius. */
+    private static final class Slot<T> {
+        CompletableFuture<T> future;
+        int maxRadius;
+        long weight;
+    }
+
+    private static final class Entry {
+        /** The cache's own copy of the samples. */
+        final float[] data;
+        final Slot<PeakPyramid> pyramid = new Slot<>();
+        final Slot<MUDDLEInverted> inverted = new Slot<>();
+        /** The weight counted in the cache's total weight: the samples, plus each structure once it has been built. */
+        long countedWeight;
+        boolean evicted;
+
+        Entry(float[] data) {
+            this.data = data;
+        }
+    }
+
+    /** Builds a structure for a dataset and maxRadius. */
+    private interface Builder<T> {
+        T build(float[] data, int maxRadius);
+    }
+
+    /**
+     * Returns the same result as MUDDLE.findPeaks(data, radius, spanGaps), from the dataset's cached PeakPyramid.
+     */
+    public int[][] findPeaks(float[] data, int radius, boolean spanGaps) {
+        return getPyramid(data, radius).findPeaks(radius, spanGaps);
+    }
+
+    /**
+     * Returns the dataset's cached PeakPyramid, with maxRadius >= radius. The pyramid is shared, and must not be
+     * modified.
+     */
+    public PeakPyramid getPyramid(float[] data, int radius) {
+        return get(data, radius, entry -> entry.pyramid, PeakPyramid::new, DecompositionCache::weight);
+    }
+
+    /**
+     * Returns a decomposition with the same extents as new MUDDLEInverted(data, maxRadius), derived from the
+     * dataset's cached decomposition (which is built with the O[data.length] NEAREST_DOMINATOR algorithm). The
+     * histogram generators (produceAltFracHist() and produceExtentHist()) can then be called on the result. The result
+     * is shared if its maxRadius equals the cached maxRadius, and must not be modified.
+     */
+    public MUDDLEInverted decompose(float[] data, int maxRadius) {
+        MUDDLEInverted muddle = get(data, maxRadius, entry -> entry.inverted, DecompositionCache::decomposeInverted,
+                DecompositionCache::weight);
+        if (muddle.maxRadius == maxRadius) {
+            return muddle;
+        }
+        int[] extent = new int[data.length];
+        for (int t = 0; t < extent.length; t++) {
+            extent[t] = Math.min(muddle.extent[t], maxRadius);
+        }
+        return new MUDDLEInverted(data, maxRadius, extent);
+    }
+
+    private static MUDDLEInverted decomposeInverted(float[] data, int maxRadius) {
+        return new MUDDLEInverted(data, maxRadius, MUDDLEInverted.ExtentAlgorithm.NEAREST_DOMINATOR);
+    }
+
+    /**
+     * Returns the same result as RadiusEstimator.alternationHistogram(data, maxRadius), from the dilation extents of
+     * the dataset's cached PeakPyramid.
+     */
+    public float[] alternationHistogram(float[] data, int maxRadius) {
+        PeakPyramid pyramid = getPyramid(data, maxRadius);
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.HISTOGRAM);
+        float[] alternationHist = RadiusEstimator.alternationHistogram(pyramid.minExtent, pyramid.maxExtent,
+                maxRadius);
+        MUDDLEMetrics.end(span, data.length);
+        return alternationHist;
+    }
+
+    /**
+     * Returns the same result as RadiusEstimator.estimate(data, maxRadius), from the dataset's cached MUDDLEInverted
+     * extents.
+     */
+    public RadiusEstimate estimateRadius(float[] data, int maxRadius) {
+        return RadiusEstimator.estimate(decompose(data, maxRadius));
+    }
+
+    private <T> T get(float[] data, int radius, Function<Entry, Slot<T>> slotOf, Builder<T> builder,
+            ToLongFunction<T> weigher) {
+        if (radius < 0) {
+            throw new IllegalArgumentException("radius must be non-negative");
+        }
+        Key key = new Key(data);
+        Entry entry = lookup(key, data);
+        Slot<T> slot;
+        CompletableFuture<T> future;
+        int buildRadius = Math.max(radius, minMaxRadius);
+        boolean build = false;
+        synchronized (this) {
+            if (entry == null) {
+                // Hash collision with a different dataset -- build the structure without caching it
+                misses++;
+                slot = null;
+                future = null;
+            } else if ((slot = slotOf.apply(entry)).future != null && slot.maxRadius >= radius) {
+                hits++;
+                if (!slot.future.isDone()) {
+                    coalesced++;
+                }
+                future = slot.future;
+            } else {
+                misses++;
+                if (slot.future != null) {
+                    // Grow geometrically, so that a sequence of increasing radii causes O[log] rebuilds
+                    buildRadius = (int) Math.max(buildRadius, Math.min(Integer.MAX_VALUE, 2L * slot.maxRadius));
+                }
+                future = slot.future = new CompletableFuture<>();
+                slot.maxRadius = buildRadius;
+                build = true;
+            }
+        }
+        if (entry == null) {
+            return builder.build(data, buildRadius);
+        }
+        if (build) {
+            T value;
+            try {
+                // Build from the cache's copy, since the structure may keep a reference to the samples
+                value = builder.build(entry.data, buildRadius);
+            } catch (RuntimeException | Error e) {
+                synchronized (this) {
+                    // Let the next request try again
+                    if (slot.future == future) {
+                        slot.future = null;
+                        slot.maxRadius = 0;
+                    }
+                }
+                future.completeExceptionally(e);
+                throw e;
+            }
+            synchronized (this) {
+                if (slot.future == future && !entry.evicted) {
+                    slot.weight = weigher.applyAsLong(value);
+                    long weight = 4L * data.length + entry.pyramid.weight + entry.inverted.weight;
+                    totalWeight += weight - entry.countedWeight;
+                    entry.countedWeight = weight;
+                    evict();
+                }
+            }
+            future.complete(value);
+            return value;
+        }
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            // Rethrow the builder's exception on the coalesced request's thread
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the dataset's entry, adding a new entry with a copy of the samples if there is none, or null if the
+     * entry for the key is a different dataset (a hash collision). The samples are copied and compared without
+     * holding the lock (an entry's samples are never modified).
+     */
+    private Entry lookup(Key key, float[] data) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            Entry newEntry = new Entry(data.clone());
+            synchronized (this) {
+                entry = entries.get(key);
+                if (entry == null) {
+                    entries.put(key, newEntry);
+                    newEntry.countedWeight = 4L * data.length;
+                    totalWeight += newEntry.countedWeight;
+                    evict();
+                    return newEntry;
+                }
+            }
+            // Another request added an entry for the key in the meantime
+        }
+        return Arrays.equals(entry.data, data) ? entry : null;
+    }
+
+    /** Evict least recently used entries until the total weight is within maxWeight. Called with the lock held. */
+    private void evict() {
+        for (Iterator<Entry> iter = entries.values().iterator(); totalWeight > maxWeight && iter.hasNext();) {
+            Entry entry = iter.next();
+            iter.remove();
+            entry.evicted = true;
+            totalWeight -= entry.countedWeight;
+            evictions++;
+        }
+    }
+
+    /** The approximate size in bytes of a PeakPyramid, including its range indices. */
+    private static long weight(PeakPyramid pyramid) {
+        // The extents, trees of extrema and offsets, plus about one int per data point for each range index
+        return 4L * (2L * pyramid.dataLength + 3L * pyramid.minTree.idxs.length + 3L * pyramid.maxTree.idxs.length
+                + pyramid.minOffsets.length + pyramid.maxOffsets.length) + 8L * pyramid.dataLength;
+    }
+
+    /** The approximate size in bytes of a MUDDLEInverted decomposition, including its range indices. */
+    private static long weight(MUDDLEInverted muddle) {
+        // The extents, plus the per-type extent arrays and range indices built by buildRangeIndex()
+        return 4L * muddle.extent.length + 16L * muddle.extent.length;
+    }
+
+    /** Discard all cached entries (builds in progress still complete, but are not cached). */
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            entry.evicted = true;
+        }
+        entries.clear();
+        totalWeight = 0;
+    }
+
+    /** Cache statistics, as returned by getStats(). */
+    public static final class Stats {
+        /** The number of requests answered from a cached or in-progress structure. */
+        public final long hits;
+        /** The number of requests that built a structure. */
+        public final long misses;
+        /** The number of hits that waited for a structure being built by another request. */
+        public final long coalesced;
+        public final long evictions;
+        public final int numEntries;
+        public final long weight;
+
+        Stats(long hits, long misses, long coalesced, long evictions, int numEntries, long weight) {
+            this.hits = hits;
+            this.misses = misses;
+            this.coalesced = coalesced;
+            this.evictions = evictions;
+            this.numEntries = numEntries;
+            this.weight = weight;
+        }
+
+        public double hitRate() {
+            return hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "hits=%d misses=%d (hit rate %.3f) coalesced=%d evictions=%d entries=%d weight=%d", hits,
+                    misses, hitRate(), coalesced, evictions, numEntries, weight);
+        }
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits, misses, coalesced, evictions, entries.size(), totalWeight);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.nio.LongBuffer;
+
+/**
+ * Fixed-length array of signed extents, stored in the narrowest primitive type that can hold values in the range
+ * [-maxExtent, maxExtent]: 1 byte per element for maxExtent <= 127, 2 bytes for maxExtent <= 32767, otherwise 4
+ * bytes. (PackedExtentArray uses the minimum number of bits per element.)
+ */
+public abstract class ExtentArray {
+
+    /** Create a zeroed array of the specified length, able to hold values in the range [-maxExtent, maxExtent]. */
+    public static ExtentArray create(int length, int maxExtent) {
+        if (maxExtent < 0) {
+            throw new IllegalArgumentException("maxExtent must be non-negative");
+        }
+        return maxExtent <= Byte.MAX_VALUE ? new ByteExtentArray(length)
+                : maxExtent <= Short.MAX_VALUE ? new ShortExtentArray(length) : new IntExtentArray(length);
+    }
+
+    public abstract int length();
+
+    public abstract int get(int i);
+
+    public abstract void set(int i, int value);
+
+    /** The number of bits used to store each element. */
+    public abstract int bitsPerElement();
+
+    static class ByteExtentArray extends ExtentArray {
+        private final byte[] values;
+
+        ByteExtentArray(int length) {
+            values = new byte[length];
+        }
+
+        @Override
+        public int length() {
+            return values.length;
+        }
+
+        @Override
+        public int get(int i) {
+            return values[i];
+        }
+
+        @Override
+        public void set(int i, int value) {
+            values[i] = (byte) value;
+        }
+
+        @Override
+        public int bitsPerElement() {
+            return 8;
+        }
+    }
+
+    static class ShortExtentArray extends ExtentArray {
+        private final short[] values;
+
+        ShortExtentArray(int length) {
+            values = new short[length];
+        }
+
+        @Override
+        public int length() {
+            return values.length;
+        }
+
+        @Override
+        public int get(int i) {
+            return values[i];
+        }
+
+        @Override
+        public void set(int i, int value) {
+            values[i] = (short) value;
+        }
+
+        @Override
+        public int bitsPerElement() {
+            return 16;
+        }
+    }
+
+    static class IntExtentArray extends ExtentArray {
+        private final int[] values;
+
+        IntExtentArray(int length) {
+            values = new int[length];
+        }
+
+        @Override
+        public int length() {
+            return values.length;
+        }
+
+        @Override
+        public int get(int i) {
+            return values[i];
+        }
+
+        @Override
+        public void set(int i, int value) {
+            values[i] = value;
+        }
+
+        @Override
+        public int bitsPerElement() {
+            return 32;
+        }
+    }
+
+    /**
+     * Signed extents bit-packed into 64-bit words, bitsPerElement bits each (in two's complement, low bits first),
+     * for example in a memory-mapped ExtentIndexFile. An element may straddle two words. The words are held in
+     * windows of WINDOW_WORDS words (the last window may be shorter), since a single memory mapping is limited to
+     * 2GB, and the words of a large array can take up to 8GB.
+     */
+    static class PackedExtentArray extends ExtentArray {
+        static final int WINDOW_SHIFT = 27;
+        /** The number of words in each window (1GB). */
+        static final int WINDOW_WORDS = 1 << WINDOW_SHIFT;
+
+        private final LongBuffer[] windows;
+        private final int length;
+        private final int bits;
+        private final long mask;
+
+        PackedExtentArray(LongBuffer[] windows, int length, int bits) {
+            long numWords = 0;
+            for (int w = 0; w < windows.length; w++) {
+                int limit = windows[w].limit();
+                if (w < windows.length - 1 ? limit != WINDOW_WORDS : limit > WINDOW_WORDS) {
+                    throw new IllegalArgumentException("Invalid packed extent array window size " + limit);
+                }
+                numWords += limit;
+            }
+            if (bits < 1 || bits > 32 || (long) length * bits > numWords * 64) {
+                throw new IllegalArgumentException("Invalid packed extent array");
+            }
+            this.windows = windows;
+            this.length = length;
+            this.bits = bits;
+            this.mask = (1L << bits) - 1;
+        }
+
+        /** The number of windows needed to hold numWords words. */
+        static int numWindows(int numWords) {
+            return (int) (((long) numWords + WINDOW_WORDS - 1) >>> WINDOW_SHIFT);
+        }
+
+        private long getWord(int wordIdx) {
+            return windows[wordIdx >>> WINDOW_SHIFT].get(wordIdx & (WINDOW_WORDS - 1));
+        }
+
+        private void putWord(int wordIdx, long word) {
+            windows[wordIdx >>> WINDOW_SHIFT].put(wordIdx & (WINDOW_WORDS - 1), word);
+        }
+
+        /** The minimum number of bits needed to store signed extents in the range [-maxExtent, maxExtent]. */
+        static int bitsFor(int maxExtent) {
+            return 33 - Integer.numberOfLeadingZeros(maxExtent);
+        }
+
+        /** The number of 64-bit words needed to store length elements of the given number of bits. */
+        static int numWords(int length, int bits) {
+            return (int) (((long) length * bits + 63) >>> 6);
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public int get(int i) {
+            long bitIdx = (long) i * bits;
+            int wordIdx = (int) (bitIdx >>> 6), shift = (int) (bitIdx & 63);
+            long raw = getWord(wordIdx) >>> shift;
+            if (shift + bits > 64) {
+                raw |= getWord(wordIdx + 1) << (64 - shift);
+            }
+            // Sign-extend
+            return (int) (raw << (64 - bits) >> (64 - bits));
+        }
+
+        @Override
+        public void set(int i, int value) {
+            long bitIdx = (long) i * bits;
+            int wordIdx = (int) (bitIdx >>> 6), shift = (int) (bitIdx & 63);
+            long v = value & mask;
+            putWord(wordIdx, (getWord(wordIdx) & ~(mask << shift)) | (v << shift));
+            if (shift + bits > 64) {
+                int hiBits = shift + bits - 64;
+                putWord(wordIdx + 1, (getWord(wordIdx + 1) & ~((1L << hiBits) - 1)) | (v >>> (64 - shift)));
+            }
+        }
+
+        @Override
+        public int bitsPerElement() {
+            return bits;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent index file of MUDDLEInverted extents, so that the extents only have to be computed once per recording.
+ * 
+ * The extents are stored as signed extents (positive for a local maximum, negative for a local minimum), bit-packed
+ * with the minimum number of bits for maxRadius (e.g. 9 bits per data point for maxRadius = 255, rather than 32 bits
+ * for an int[]). The file is reloaded through a read-only memory map, so only the pages that are queried are read
+ * from disk, and the extents are unpacked on access: the returned FusedExtents answers
+ * findMostDominantExtremumBetween and scale queries straight off the mapped file. The packed extents can take up to
+ * 8GB, so they are mapped in 1GB windows (a single mapping is limited to 2GB).
+ * 
+ * File layout (all values little-endian):
+ * 
+ * <pre>
+ * int   magic ("MUDX")
+ * int   version
+ * long  number of data points
+ * int   maxRadius
+ * int   bits per data point
+ * long  CRC32 of the source data (see checksum())
+ * long[] bit-packed signed extents
+ * </pre>
+ */
+public class ExtentIndexFile {
+    static final int MAGIC = 0x5844554d; // "MUDX" in little-endian byte order
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+
+    /** Compute the extents of data with maxRadius, and write them to an index file. */
+    public static void write(String filename, float[] data, int maxRadius) {
+        write(filename, new MUDDLEInverted(data, maxRadius, MUDDLEInverted.ExtentAlgorithm.NEAREST_DOMINATOR));
+    }
+
+    /** Write the extents of a MUDDLEInverted decomposition to an index file. */
+    public static void write(String filename, MUDDLEInverted muddle) {
+        Samples data = muddle.data;
+        int n = data.length(), bits = ExtentArray.PackedExtentArray.bitsFor(muddle.maxRadius);
+        long fileSize = HEADER_BYTES + 8L * ExtentArray.PackedExtentArray.numWords(n, bits);
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putLong(n).putInt(muddle.maxRadius).putInt(bits)
+                    .putLong(checksum(data));
+            MappedByteBuffer[] windows = mapWindows(channel, FileChannel.MapMode.READ_WRITE, fileSize);
+            ExtentArray packed = new ExtentArray.PackedExtentArray(asLongBuffers(windows), n, bits);
+            for (int t = 0; t < n; t++) {
+                int extent = muddle.extent[t];
+                // Points with non-zero extent are not the last point, so have a successor to determine their type
+                packed.set(t, extent > 0 && data.greater(t + 1, t) ? -extent : extent);
+            }
+            header.force();
+            for (MappedByteBuffer window : windows) {
+                window.force();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Memory-map an index file, returning its extents as a FusedExtents with MUDDLEInverted semantics. The file's
+     * header is validated, but the source data checksum is not checked (see load(String, Samples)).
+     */
+    public static FusedExtents load(String filename) {
+        return load(filename, null);
+    }
+
+    /**
+     * Memory-map an index file, as for load(String), and check that it was computed from the given data, throwing
+     * IllegalArgumentException if it was not.
+     */
+    public static FusedExtents load(String filename, Samples data) {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            // The mappings remain valid after the channel is closed
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, HEADER_BYTES))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not an extent index file: " + filename);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException(
+                        "Unsupported extent index file version " + version + ": " + filename);
+            }
+            long n = header.getLong();
+            int maxRadius = header.getInt(), bits = header.getInt();
+            long sourceChecksum = header.getLong();
+            if (n < 0 || n > Integer.MAX_VALUE || maxRadius < 0
+                    || bits != ExtentArray.PackedExtentArray.bitsFor(maxRadius)) {
+                throw new IllegalArgumentException("Corrupt extent index file: " + filename);
+            }
+            long packedSize = HEADER_BYTES + 8L * ExtentArray.PackedExtentArray.numWords((int) n, bits);
+            if (fileSize < packedSize) {
+                throw new IllegalArgumentException("Corrupt extent index file: " + filename);
+            }
+            if (data != null && (data.length() != n || checksum(data) != sourceChecksum)) {
+                throw new IllegalArgumentException("Extent index file does not match the data: " + filename);
+            }
+            MappedByteBuffer[] windows = mapWindows(channel, FileChannel.MapMode.READ_ONLY, packedSize);
+            return new FusedExtents(new ExtentArray.PackedExtentArray(asLongBuffers(windows), (int) n, bits),
+                    maxRadius, /* dilation = */false);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Map the packed extent words between the header and fileSize, in windows of PackedExtentArray.WINDOW_WORDS words
+     * (the last window may be shorter).
+     */
+    private static MappedByteBuffer[] mapWindows(FileChannel channel, FileChannel.MapMode mode, long fileSize)
+            throws IOException {
+        long windowBytes = 8L * ExtentArray.PackedExtentArray.WINDOW_WORDS;
+        int numWords = (int) ((fileSize - HEADER_BYTES) / 8);
+        MappedByteBuffer[] windows = new MappedByteBuffer[ExtentArray.PackedExtentArray.numWindows(numWords)];
+        for (int w = 0; w < windows.length; w++) {
+            long pos = HEADER_BYTES + w * windowBytes;
+            windows[w] = channel.map(mode, pos, Math.min(windowBytes, HEADER_BYTES + 8L * numWords - pos));
+            windows[w].order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return windows;
+    }
+
+    private static LongBuffer[] asLongBuffers(MappedByteBuffer[] windows) {
+        LongBuffer[] longBuffers = new LongBuffer[windows.length];
+        for (int w = 0; w < windows.length; w++) {
+            longBuffers[w] = windows[w].asLongBuffer();
+        }
+        return longBuffers;
+    }
+
+    /**
+     * The CRC32 of the data, with each sample widened to a double and written as 8 little-endian bytes (so the
+     * checksum does not depend on the type of the samples).
+     */
+    public static long checksum(Samples data) {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = ByteBuffer.allocate(8 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        for (int t = 0, n = data.length(); t < n;) {
+            buf.clear();
+            while (t < n && buf.hasRemaining()) {
+                buf.putDouble(data.get(t++));
+            }
+            buf.flip();
+            crc.update(buf);
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+/**
+ * Range-maximum index over an array of extents, for answering findMostDominantExtremumBetween queries in O[log n]
+ * time rather than O[gap length] time.
+ *
+ * The index is a pyramid of maxima over aligned blocks of size 2^k, so it uses about one extra int per data point
+ * (the values array itself is referenced, not copied). The values array must not be modified after the index is
+ * built.
+ */
+public class ExtentRangeIndex {
+    /** levels[0] is the values array, levels[k][i] is the max of values[i << k .. ((i + 1) << k) - 1]. */
+    private final int[][] levels;
+
+    public ExtentRangeIndex(int[] values) {
+        int numLevels = 1;
+        while ((1L << numLevels) <= values.length) {
+            numLevels++;
+        }
+        levels = new int[numLevels][];
+        levels[0] = values;
+        for (int k = 1; k < numLevels; k++) {
+            int[] prev = levels[k - 1];
+            int[] curr = new int[(prev.length + 1) / 2];
+            for (int i = 0; i < curr.length; i++) {
+                int i0 = 2 * i, i1 = i0 + 1;
+                curr[i] = i1 < prev.length ? Math.max(prev[i0], prev[i1]) : prev[i0];
+            }
+            levels[k] = curr;
+        }
+    }
+
+    /** Return the value at index i. */
+    public int get(int i) {
+        return levels[0][i];
+    }
+
+    /** Return the maximum value in the index range [lo, hi] (inclusive). */
+    public int max(int lo, int hi) {
+        int max = Integer.MIN_VALUE;
+        // Walk rightwards over the largest aligned blocks that fit within the range
+        for (int j = lo, k = 0; j <= hi;) {
+            int size = 1 << k;
+            if (j + size - 1 <= hi) {
+                max = Math.max(max, levels[k][j >> k]);
+                j += size;
+                if (k + 1 < levels.length && (j & ((size << 1) - 1)) == 0) {
+                    k++;
+                }
+            } else {
+                k--;
+            }
+        }
+        return max;
+    }
+
+    /** Return the index of the rightmost value >= threshold in the index range [lo, hi], or -1 if there is none. */
+    public int rightmostAtLeast(int lo, int hi, int threshold) {
+        // Skip leftwards over the largest aligned blocks whose max is less than the threshold
+        for (int j = hi, k = 0; j >= lo;) {
+            int size = 1 << k, start = j - size + 1;
+            if (start >= lo && levels[k][j >> k] < threshold) {
+                j = start - 1;
+                if (k + 1 < levels.length && ((j + 1) & ((size << 1) - 1)) == 0) {
+                    k++;
+                }
+            } else if (k == 0) {
+                return j;
+            } else {
+                k--;
+            }
+        }
+        return -1;
+    }
+
+    /** Return the index of the leftmost value >= threshold in the index range [lo, hi], or -1 if there is none. */
+    public int leftmostAtLeast(int lo, int hi, int threshold) {
+        // Skip rightwards over the largest aligned blocks whose max is less than the threshold
+        for (int j = lo, k = 0; j <= hi;) {
+            int size = 1 << k, end = j + size - 1;
+            if (end <= hi && levels[k][j >> k] < threshold) {
+                j = end + 1;
+                if (k + 1 < levels.length && (j & ((size << 1) - 1)) == 0) {
+                    k++;
+                }
+            } else if (k == 0) {
+                return j;
+            } else {
+                k--;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the index of the maximum value in the index range [lo, hi] (inclusive), where lo <= center <= hi. Ties
+     * are broken by picking the index closest to center, and then by picking the lower index, which gives the same
+     * result as scanning outwards from center, checking the left side before the right side at each radius.
+     */
+    public int argMaxNearest(int lo, int hi, int center) {
+        int max = max(lo, hi);
+        int left = rightmostAtLeast(lo, center, max);
+        if (left == center) {
+            return center;
+        }
+        int right = leftmostAtLeast(center, hi, max);
+        if (left < 0) {
+            return right;
+        } else if (right < 0) {
+            return left;
+        } else {
+            return center - left <= right - center ? left : right;
+        }
+    }
+}
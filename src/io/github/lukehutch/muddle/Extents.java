@@ -0,0 +1,325 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+/**
+ * Kernels for computing the extent array of MUDDLEInverted. All kernels produce identical results.
+ * 
+ * Each kernel has a float[] version and a Samples version for other input types; the Samples versions dispatch to
+ * the float[] versions when the samples are backed by a float[], and otherwise run on windows of the samples widened
+ * to double.
+ */
+class Extents {
+
+    /**
+     * Compute extent[t] for t in [from, to), by probing outwards one radius at a time from each data point until the
+     * point is dominated, or until the probe runs off the end of the data.
+     * 
+     * Runs in O[sum of extents], which is O[(to - from) * maxRadius] in the worst case (e.g. for smooth signals).
+     */
+    static void probe(float[] data, int maxRadius, int[] extent, int from, int to) {
+        for (int t = from; t < to; t++) {
+            int r = 1;
+            for (int extremumType = 0; r <= maxRadius; r++) {
+                int t0 = t - r, t1 = t + r;
+                if (t0 < 0 || t1 >= data.length) {
+                    // Ran off end of data
+                    break;
+                }
+                float d = data[t], d0 = data[t0], d1 = data[t1];
+                // Find convexity type at radius r: 1 => local max; -1 => local min; 0 => neither
+                int convexityType = d >= d0 && d > d1 ? 1 : d <= d0 && d < d1 ? -1 : 0;
+                if (extremumType == 0) {
+                    // Fix extremum type after first dilation (when r == 1) --
+                    // a point can't be both a local maximum and a local minimum.
+                    extremumType = convexityType;
+                }
+                if (convexityType == 0 || extremumType != convexityType) {
+                    // Convexity type changed => extremum is not dominant at this radius
+                    break;
+                }
+            }
+            extent[t] = r - 1;
+        }
+    }
+
+    /**
+     * Compute extent[t] for all t by finding the nearest dominating neighbour on either side of each data point
+     * using a monotonic stack. A local max at t is dominated at radius r by a point on the left if data[t - r] >
+     * data[t], or by a point on the right if data[t + r] >= data[t] (and vice versa for a local min), so extent[t] is
+     * one less than the distance to the nearest dominating neighbour, the distance to the end of the data, or
+     * (maxRadius + 1), whichever is smallest. This gives exactly the same result as probe(), including its tie
+     * breaking and its handling of NaN: every comparison with NaN is false, so a NaN sample has extent 0, and
+     * dominates every point on either side of it.
+     * 
+     * Runs in O[data.length], independent of maxRadius, using two int[data.length] scratch arrays.
+     */
+    static void nearestDominator(float[] data, int maxRadius, int[] extent) {
+        nearestDominator(data, maxRadius, extent, 0, data.length);
+    }
+
+    /**
+     * Compute extent[t] for t in [from, to) using nearestDominator(). Only the samples within maxRadius of [from,
+     * to) are read, so that disjoint ranges can be computed independently.
+     */
+    static void nearestDominator(float[] data, int maxRadius, int[] extent, int from, int to) {
+        int windowSize = windowSize(data.length, maxRadius, from, to);
+        nearestDominator(data, maxRadius, extent, from, to, new int[windowSize], new int[windowSize]);
+    }
+
+    /**
+     * Compute extent[t] for t in [from, to) using nearestDominator(), with caller-supplied scratch arrays, each of
+     * which must be at least windowSize(data.length, maxRadius, from, to) long.
+     */
+    static void nearestDominator(float[] data, int maxRadius, int[] extent, int from, int to, int[] stack,
+            int[] leftDist) {
+        // A point can't be both a local maximum and a local minimum at radius 1, so at most one of the two passes
+        // gives a non-zero extent
+        nearestDominator(data, maxRadius, extent, 0, from, to, stack, leftDist);
+    }
+
+    /** The number of samples read when computing the extents of the data points in [from, to). */
+    static int windowSize(int dataLength, int maxRadius, int from, int to) {
+        return (int) (Math.min(dataLength, (long) to + maxRadius) - Math.max(0, from - maxRadius));
+    }
+
+    /**
+     * Compute, for t in [from, to), the extent that Extrema.dilate() gives for data point t after the specified
+     * number of dilations (i.e. the last radius at which t was not dominated, up to radius). Unlike MUDDLEInverted,
+     * Extrema are not dominated by the ends of the data. Extrema.dilate() tests for domination with > and >=, which
+     * are false for NaN, so a NaN sample is never dominated (its extent is radius), and never dominates any point.
+     */
+    static void dilationExtent(float[] data, boolean isMax, int radius, int[] extent, int from, int to) {
+        int windowSize = windowSize(data.length, radius, from, to);
+        dilationExtent(data, isMax, radius, extent, 0, from, to, new int[windowSize], new int[windowSize]);
+    }
+
+    /**
+     * Compute dilationExtent() for t in [from, to), writing the extent of t to extent[t - extentOffset], with
+     * caller-supplied scratch arrays, each of which must be at least windowSize(data.length, radius, from, to) long.
+     */
+    static void dilationExtent(float[] data, boolean isMax, int radius, int[] extent, int extentOffset, int from,
+            int to, int[] stack, int[] leftDist) {
+        nearestDominator(data, isMax, radius, /* limitByEnds = */false, /* onlyNonZero = */false, extent,
+                extentOffset, from, to, stack, leftDist);
+    }
+
+    /**
+     * Compute nearestDominator() for t in [from, to), writing the extent of t to extent[t - extentOffset], with
+     * caller-supplied scratch arrays, each of which must be at least windowSize(data.length, maxRadius, from, to)
+     * long.
+     */
+    static void nearestDominator(float[] data, int maxRadius, int[] extent, int extentOffset, int from, int to,
+            int[] stack, int[] leftDist) {
+        nearestDominator(data, /* isMax = */true, maxRadius, /* limitByEnds = */true, /* onlyNonZero = */false, extent,
+                extentOffset, from, to, stack, leftDist);
+        nearestDominator(data, /* isMax = */false, maxRadius, /* limitByEnds = */true, /* onlyNonZero = */true, extent,
+                extentOffset, from, to, stack, leftDist);
+    }
+
+    /**
+     * Find the distance to the nearest dominating neighbour on each side of the data points in [from, to), for one
+     * extremum type, over a window extended by maxRadius on each side of the range. If onlyNonZero is true, zero
+     * extents are not written, so that the results of a max pass and a min pass can be combined in one array.
+     * 
+     * NaN samples are never pushed onto the stack, since the stack relies on the comparisons being a total order. If
+     * limitByEnds is true (MUDDLEInverted semantics), a NaN sample dominates every point: it dominates all points on
+     * the stack, and acts as the nearest dominating point on the left until the next point is pushed. Otherwise
+     * (Extrema semantics), a NaN sample is skipped, since it neither dominates nor is dominated.
+     */
+    private static void nearestDominator(float[] data, boolean isMax, int maxRadius, boolean limitByEnds,
+            boolean onlyNonZero, int[] extent, int extentOffset, int from, int to, int[] stack, int[] leftDist) {
+        int n = data.length;
+        int winStart = Math.max(0, from - maxRadius);
+        int winEnd = (int) Math.min(n, (long) to + maxRadius);
+        int stackSize = 0;
+        // The last NaN sample, or -1 if there is none in the window so far
+        int nanIdx = -1;
+        for (int t = winStart; t <= winEnd; t++) {
+            boolean isNaN = t < winEnd && data[t] != data[t];
+            if (isNaN && !limitByEnds) {
+                if (t >= from && t < to) {
+                    extent[t - extentOffset] = maxRadius;
+                }
+                continue;
+            }
+            // Pop all points that are dominated on the right by t (or all remaining points at the end of the window).
+            // Dominating points outside the window are more than maxRadius away from any point in [from, to).
+            while (stackSize > 0) {
+                int top = stack[stackSize - 1];
+                if (t < winEnd && !isNaN && (isMax ? data[top] > data[t] : data[top] < data[t])) {
+                    break;
+                }
+                stackSize--;
+                if (top >= from && top < to) {
+                    int r = Math.min(leftDist[top - winStart], t < winEnd ? t - top : Integer.MAX_VALUE);
+                    if (limitByEnds) {
+                        r = Math.min(r, Math.min(top + 1, n - top));
+                    }
+                    int ext = Math.min(r, maxRadius + 1) - 1;
+                    if (!onlyNonZero || ext > 0) {
+                        extent[top - extentOffset] = ext;
+                    }
+                }
+            }
+            if (isNaN) {
+                if (!onlyNonZero && t >= from && t < to) {
+                    extent[t - extentOffset] = 0;
+                }
+                nanIdx = t;
+            } else if (t < winEnd) {
+                // The point left on top of the stack (or else the last NaN) is the nearest dominating point on the left
+                leftDist[t - winStart] = stackSize > 0 ? t - stack[stackSize - 1]
+                        : nanIdx >= 0 ? t - nanIdx : Integer.MAX_VALUE;
+                stack[stackSize++] = t;
+            }
+        }
+    }
+
+    /**
+     * The number of data points whose extents are computed at a time by the Samples kernels, each reading a window of
+     * samples widened to double (see Samples.get(int, double[], int, int)).
+     */
+    private static final int SAMPLES_CHUNK_SIZE = 1 << 14;
+
+    /** A kernel over a window of samples widened to double, holding data points [winStart, winStart + winSize). */
+    private interface WindowKernel {
+        void apply(double[] window, int winStart, int from, int to);
+    }
+
+    /** The size of the largest window read by forEachWindow(). */
+    private static int maxWindowSize(int dataLength, int radius, int from, int to) {
+        return (int) Math.min(dataLength, Math.min(to - from, SAMPLES_CHUNK_SIZE) + 2L * radius);
+    }
+
+    /**
+     * Apply a kernel to the data points in [from, to), one chunk of SAMPLES_CHUNK_SIZE data points at a time, with a
+     * window of the samples within radius of the chunk widened to double.
+     */
+    private static void forEachWindow(Samples data, int radius, int from, int to, WindowKernel kernel) {
+        int n = data.length();
+        double[] window = new double[maxWindowSize(n, radius, from, to)];
+        for (int chunkFrom = from; chunkFrom < to; chunkFrom += SAMPLES_CHUNK_SIZE) {
+            int chunkTo = (int) Math.min(to, (long) chunkFrom + SAMPLES_CHUNK_SIZE);
+            int winStart = Math.max(0, chunkFrom - radius);
+            data.get(winStart, window, 0, windowSize(n, radius, chunkFrom, chunkTo));
+            kernel.apply(window, winStart, chunkFrom, chunkTo);
+        }
+    }
+
+    /** Same as probe(float[], ...), for any type of samples. */
+    static void probe(Samples data, int maxRadius, int[] extent, int from, int to) {
+        float[] floatData = data.floatArray();
+        if (floatData != null) {
+            probe(floatData, maxRadius, extent, from, to);
+            return;
+        }
+        int n = data.length();
+        forEachWindow(data, maxRadius, from, to, (window, winStart, chunkFrom, chunkTo) -> {
+            for (int t = chunkFrom; t < chunkTo; t++) {
+                int r = 1;
+                for (int extremumType = 0; r <= maxRadius; r++) {
+                    int t0 = t - r, t1 = t + r;
+                    if (t0 < 0 || t1 >= n) {
+                        break;
+                    }
+                    double d = window[t - winStart], d0 = window[t0 - winStart], d1 = window[t1 - winStart];
+                    int convexityType = d >= d0 && d > d1 ? 1 : d <= d0 && d < d1 ? -1 : 0;
+                    if (extremumType == 0) {
+                        extremumType = convexityType;
+                    }
+                    if (convexityType == 0 || extremumType != convexityType) {
+                        break;
+                    }
+                }
+                extent[t] = r - 1;
+            }
+        });
+    }
+
+    /** Same as nearestDominator(float[], int, int[]), for any type of samples. */
+    static void nearestDominator(Samples data, int maxRadius, int[] extent) {
+        float[] floatData = data.floatArray();
+        if (floatData != null) {
+            nearestDominator(floatData, maxRadius, extent);
+            return;
+        }
+        int n = data.length();
+        int scratchSize = maxWindowSize(n, maxRadius, 0, n);
+        int[] stack = new int[scratchSize], leftDist = new int[scratchSize];
+        forEachWindow(data, maxRadius, 0, n, (window, winStart, chunkFrom, chunkTo) -> {
+            nearestDominator(window, winStart, n, /* isMax = */true, maxRadius, /* limitByEnds = */true,
+                    /* onlyNonZero = */false, extent, chunkFrom, chunkTo, stack, leftDist);
+            nearestDominator(window, winStart, n, /* isMax = */false, maxRadius, /* limitByEnds = */true,
+                    /* onlyNonZero = */true, extent, chunkFrom, chunkTo, stack, leftDist);
+        });
+    }
+
+    /** Same as dilationExtent(float[], ...), for any type of samples. */
+    static void dilationExtent(Samples data, boolean isMax, int radius, int[] extent, int from, int to) {
+        float[] floatData = data.floatArray();
+        if (floatData != null) {
+            dilationExtent(floatData, isMax, radius, extent, from, to);
+            return;
+        }
+        int n = data.length();
+        int scratchSize = maxWindowSize(n, radius, from, to);
+        int[] stack = new int[scratchSize], leftDist = new int[scratchSize];
+        forEachWindow(data, radius, from, to, (window, winStart, chunkFrom, chunkTo) -> nearestDominator(window,
+                winStart, n, isMax, radius, /* limitByEnds = */false, /* onlyNonZero = */false, extent, chunkFrom,
+                chunkTo, stack, leftDist));
+    }
+
+    /**
+     * Same as nearestDominator(float[], boolean, ...), reading data point t from window[t - winStart], for a window
+     * of the samples of a Samples object widened to double, where n is the number of samples.
+     */
+    private static void nearestDominator(double[] window, int winStart, int n, boolean isMax, int maxRadius,
+            boolean limitByEnds, boolean onlyNonZero, int[] extent, int from, int to, int[] stack, int[] leftDist) {
+        int winEnd = (int) Math.min(n, (long) to + maxRadius);
+        int stackSize = 0;
+        int nanIdx = -1;
+        for (int t = Math.max(0, from - maxRadius); t <= winEnd; t++) {
+            double d = t < winEnd ? window[t - winStart] : 0.0;
+            boolean isNaN = t < winEnd && d != d;
+            if (isNaN && !limitByEnds) {
+                if (t >= from && t < to) {
+                    extent[t] = maxRadius;
+                }
+                continue;
+            }
+            while (stackSize > 0) {
+                int top = stack[stackSize - 1];
+                if (t < winEnd && !isNaN && (isMax ? window[top - winStart] > d : window[top - winStart] < d)) {
+                    break;
+                }
+                stackSize--;
+                if (top >= from && top < to) {
+                    int r = Math.min(leftDist[top - winStart], t < winEnd ? t - top : Integer.MAX_VALUE);
+                    if (limitByEnds) {
+                        r = Math.min(r, Math.min(top + 1, n - top));
+                    }
+                    int ext = Math.min(r, maxRadius + 1) - 1;
+                    if (!onlyNonZero || ext > 0) {
+                        extent[top] = ext;
+                    }
+                }
+            }
+            if (isNaN) {
+                if (!onlyNonZero && t >= from && t < to) {
+                    extent[t] = 0;
+                }
+                nanIdx = t;
+            } else if (t < winEnd) {
+                leftDist[t - winStart] = stackSize > 0 ? t - stack[stackSize - 1]
+                        : nanIdx >= 0 ? t - nanIdx : Integer.MAX_VALUE;
+                stack[stackSize++] = t;
+            }
+        }
+    }
+}
@@ -9,22 +9,99 @@ package io.github.lukehutch.muddle;
 
 public class Extrema {
     int radius = 0;
+    /** The samples, and the backing float[] of the samples (or null if they are not a float[]). */
+    Samples samples;
     float[] data;
     boolean isMax;
     int[] liveExtremumDataIdx;
     int numLiveExtrema;
     int[] extent;
+    ExtentRangeIndex rangeIndex;
+    /**
+     * True after reset(), until the first dilation: the live list has not been initialized, and all data points are
+     * implicitly live.
+     */
+    boolean allLive;
+
+    /** dilateTo() uses the dense kernel while at least 1/DENSE_FRACTION_DENOMINATOR of the data points are live. */
+    static final int DENSE_FRACTION_DENOMINATOR = 8;
+
+    /** The number of live extrema whose samples are gathered at a time by dilateSamples(). */
+    private static final int GATHER_BLOCK_SIZE = 1024;
+    /** Scratch space for dilateSamples(), allocated on first use. */
+    private double[][] gathered;
+
+    /** A dilation kernel that works on the extents alone, without the live list. */
+    interface DenseKernel {
+        /**
+         * Perform the dilate() test at radius r for each live extremum, i.e. each data point with extent[t] == r - 1,
+         * setting extent[t] = r if it is not dominated. Returns the number of live extrema after the dilation.
+         */
+        int dilateLive(float[] data, boolean isMax, int r, int[] extent);
+    }
+
+    /**
+     * The VectorDilation kernel for dilateTo(), or null, looked up on first use. VectorDilation is loaded by name,
+     * since it is only compiled on JDK 16 or later, and the jdk.incubator.vector module is only present if the JVM
+     * was started with --add-modules jdk.incubator.vector. Can be switched off with -Dmuddle.vector=false.
+     */
+    private static final class Vectorized {
+        static final DenseKernel kernel = "false".equals(System.getProperty("muddle.vector")) ? null : load();
+
+        private static DenseKernel load() {
+            try {
+                Class.forName("jdk.incubator.vector.FloatVector", false, Extrema.class.getClassLoader());
+                return (DenseKernel) Class.forName("io.github.lukehutch.muddle.VectorDilation").getDeclaredConstructor()
+                        .newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                return null;
+            }
+        }
+    }
+
+    /** True if dilateTo() uses the jdk.incubator.vector kernel (see VectorDilation) for the dense dilations. */
+    public static boolean isVectorized() {
+        return Vectorized.kernel != null;
+    }
 
     public Extrema(float[] data, boolean isMax) {
-        this.data = data;
+        this(Samples.of(data), isMax);
+    }
+
+    /** Find extrema in samples of any type. Samples backed by a float[] use the float[] code path. */
+    public Extrema(Samples samples, boolean isMax) {
+        this.samples = samples;
+        this.data = samples.floatArray();
         this.isMax = isMax;
-        liveExtremumDataIdx = new int[data.length];
-        for (int t = 0; t < data.length; t++) {
+        int n = samples.length();
+        liveExtremumDataIdx = new int[n];
+        for (int t = 0; t < n; t++) {
             // At initial radius 0, all data points are extrema
             liveExtremumDataIdx[t] = t;
         }
+        numLiveExtrema = n;
+        extent = new int[n]; // Initially all 0
+    }
+
+    /** Allocate the arrays for data of up to capacity samples. reset() must be called before the first dilation. */
+    Extrema(int capacity, boolean isMax) {
+        this.isMax = isMax;
+        liveExtremumDataIdx = new int[capacity];
+        extent = new int[capacity];
+    }
+
+    /**
+     * Reuse the arrays for new data, which must be no longer than the arrays, in O[1]: instead of initializing the
+     * live list and clearing the extents, the first dilation treats all data points as live and overwrites all
+     * extents. Only the float[] code path is used after a reset.
+     */
+    void reset(float[] data) {
+        this.samples = null;
+        this.data = data;
+        radius = 0;
         numLiveExtrema = data.length;
-        extent = new int[data.length]; // Initially all 0
+        rangeIndex = null;
+        allLive = true;
     }
 
     /**
@@ -33,7 +110,17 @@ public class Extrema {
      * Runs in O[numLiveExtrema], which is O[data.length / radius].
      */
     public void dilate() {
+        if (data == null) {
+            dilateSamples();
+            return;
+        }
+        if (allLive) {
+            dilateAllLive();
+            return;
+        }
         radius++;
+        // Extents are about to change
+        rangeIndex = null;
         for (int readIdx = 0, maxReadIdx = numLiveExtrema, writeIdx = 0; readIdx < maxReadIdx; readIdx++) {
             int t = liveExtremumDataIdx[readIdx], tl = t - radius, tr = t + radius;
             if (!( //
@@ -48,6 +135,191 @@ public class Extrema {
                 numLiveExtrema--;
             }
         }
+        MUDDLEMetrics.recordDilation(radius, numLiveExtrema);
+    }
+
+    /** Same as the first dilate() after a reset, when the live list has not been initialized. */
+    private void dilateAllLive() {
+        allLive = false;
+        radius = 1;
+        rangeIndex = null;
+        int n = data.length, writeIdx = 0;
+        for (int t = 0; t < n; t++) {
+            int tl = t - 1, tr = t + 1;
+            boolean dominated = isMax ? (tl >= 0 && data[tl] > data[t]) || (tr < n && data[tr] >= data[t])
+                    : (tl >= 0 && data[tl] < data[t]) || (tr < n && data[tr] <= data[t]);
+            // Overwrite the stale extent of every data point, not just those that survive
+            extent[t] = dominated ? 0 : 1;
+            if (!dominated) {
+                liveExtremumDataIdx[writeIdx++] = t;
+            }
+        }
+        numLiveExtrema = writeIdx;
+        MUDDLEMetrics.recordDilation(radius, numLiveExtrema);
+    }
+
+    /**
+     * Same as dilate(), for samples that are not a float[]. The samples at each live extremum and at its two
+     * neighbours at the new radius are gathered in blocks, widened to double (see Samples.gather), so that the
+     * dominance tests compare primitive doubles. An out-of-range neighbour is gathered as NaN, which, like the range
+     * checks in dilate(), never dominates.
+     */
+    private void dilateSamples() {
+        radius++;
+        rangeIndex = null;
+        if (gathered == null) {
+            gathered = new double[3][GATHER_BLOCK_SIZE];
+        }
+        double[] value = gathered[0], left = gathered[1], right = gathered[2];
+        int writeIdx = 0;
+        for (int blockStart = 0; blockStart < numLiveExtrema; blockStart += GATHER_BLOCK_SIZE) {
+            int blockSize = Math.min(GATHER_BLOCK_SIZE, numLiveExtrema - blockStart);
+            samples.gather(liveExtremumDataIdx, blockStart, blockSize, 0, value);
+            samples.gather(liveExtremumDataIdx, blockStart, blockSize, -radius, left);
+            samples.gather(liveExtremumDataIdx, blockStart, blockSize, radius, right);
+            // Survivors are compacted in place, which only overwrites entries that have already been read
+            for (int i = 0; i < blockSize; i++) {
+                int t = liveExtremumDataIdx[blockStart + i];
+                double d = value[i];
+                if (isMax ? !(left[i] > d || right[i] >= d) : !(left[i] < d || right[i] <= d)) {
+                    extent[t] = radius;
+                    liveExtremumDataIdx[writeIdx++] = t;
+                }
+            }
+        }
+        numLiveExtrema = writeIdx;
+        MUDDLEMetrics.recordDilation(radius, numLiveExtrema);
+    }
+
+    /**
+     * Dilate extrema until the radius reaches targetRadius. If useDenseKernel is true, then while at least
+     * 1/DENSE_FRACTION_DENOMINATOR of the data points are still live, each dilation uses a dense kernel rather than
+     * dilate(): the VectorDilation kernel if isVectorized(), otherwise dilateDense(). Gives identical results to
+     * calling dilate() (targetRadius - radius) times. The dense kernels are only used for samples backed by a
+     * float[].
+     */
+    public void dilateTo(int targetRadius, boolean useDenseKernel) {
+        if (data == null) {
+            while (radius < targetRadius) {
+                dilateSamples();
+            }
+            return;
+        }
+        DenseKernel vectorKernel = Vectorized.kernel;
+        if (useDenseKernel && vectorKernel != null) {
+            if (allLive && radius < targetRadius) {
+                // The stale extents after a reset do not identify the live extrema yet
+                dilateAllLive();
+            }
+            dilateVectorized(vectorKernel, targetRadius);
+        }
+        while (radius < targetRadius) {
+            if (useDenseKernel && (long) numLiveExtrema * DENSE_FRACTION_DENOMINATOR >= data.length) {
+                dilateDense();
+            } else {
+                dilate();
+            }
+        }
+    }
+
+    /**
+     * Same as dilate(), but branch-free for the live extrema whose neighbours at the new radius are both within the
+     * data. At low radii, when a large fraction of data points are still live and about half of them are dominated
+     * at each radius, the branch in dilate() is unpredictable, so it is cheaper to always write the data index and
+     * extent, and only advance the write index if the extremum survived. (The extent of a live extremum is always
+     * radius - 1 before the dilation.)
+     */
+    void dilateDense() {
+        if (data == null || allLive) {
+            dilate();
+            return;
+        }
+        radius++;
+        rangeIndex = null;
+        int r = radius, n = data.length;
+        int[] live = liveExtremumDataIdx;
+        int numLive = numLiveExtrema;
+        // Live extrema are in increasing order of data index, so the extrema with both neighbours within the data
+        // are a contiguous range of the live list
+        int interiorStart = 0;
+        while (interiorStart < numLive && live[interiorStart] < r) {
+            interiorStart++;
+        }
+        int interiorEnd = numLive;
+        while (interiorEnd > interiorStart && live[interiorEnd - 1] + r >= n) {
+            interiorEnd--;
+        }
+        int writeIdx = dilateEdge(0, interiorStart, 0);
+        if (isMax) {
+            for (int readIdx = interiorStart; readIdx < interiorEnd; readIdx++) {
+                int t = live[readIdx];
+                float d = data[t];
+                // Same as the test in dilate(), including for NaN, using non-short-circuit operators
+                boolean notDominated = !(data[t - r] > d) & !(data[t + r] >= d);
+                int survived = notDominated ? 1 : 0;
+                extent[t] = r - 1 + survived;
+                live[writeIdx] = t;
+                writeIdx += survived;
+            }
+        } else {
+            for (int readIdx = interiorStart; readIdx < interiorEnd; readIdx++) {
+                int t = live[readIdx];
+                float d = data[t];
+                boolean notDominated = !(data[t - r] < d) & !(data[t + r] <= d);
+                int survived = notDominated ? 1 : 0;
+                extent[t] = r - 1 + survived;
+                live[writeIdx] = t;
+                writeIdx += survived;
+            }
+        }
+        numLiveExtrema = dilateEdge(interiorEnd, numLive, writeIdx);
+        MUDDLEMetrics.recordDilation(radius, numLiveExtrema);
+    }
+
+    /**
+     * Dilate with the vector kernel while at least 1/DENSE_FRACTION_DENOMINATOR of the data points are live. The
+     * kernel tests every data point whose extent equals the radius (which are exactly the live extrema), so the live
+     * list is not maintained, and is rebuilt in one pass afterwards for the sparse dilations.
+     */
+    private void dilateVectorized(DenseKernel vectorKernel, int targetRadius) {
+        int startRadius = radius;
+        while (radius < targetRadius && (long) numLiveExtrema * DENSE_FRACTION_DENOMINATOR >= data.length) {
+            radius++;
+            rangeIndex = null;
+            numLiveExtrema = vectorKernel.dilateLive(data, isMax, radius, extent);
+            MUDDLEMetrics.recordDilation(radius, numLiveExtrema);
+        }
+        if (radius > startRadius) {
+            for (int t = 0, writeIdx = 0; writeIdx < numLiveExtrema; t++) {
+                if (extent[t] == radius) {
+                    liveExtremumDataIdx[writeIdx++] = t;
+                }
+            }
+        }
+    }
+
+    /**
+     * Perform the dilate() test for the live extrema in the range [readIdx, readIdxEnd) of the live list, compacting
+     * the survivors from writeIdx onwards. Returns the new write index.
+     */
+    private int dilateEdge(int readIdx, int readIdxEnd, int writeIdx) {
+        for (; readIdx < readIdxEnd; readIdx++) {
+            int t = liveExtremumDataIdx[readIdx], tl = t - radius, tr = t + radius;
+            if (isMax ? !((tl >= 0 && data[tl] > data[t]) || (tr < data.length && data[tr] >= data[t]))
+                    : !((tl >= 0 && data[tl] < data[t]) || (tr < data.length && data[tr] <= data[t]))) {
+                extent[t] = radius;
+                liveExtremumDataIdx[writeIdx++] = t;
+            }
+        }
+        return writeIdx;
+    }
+
+    /**
+     * Build a range-maximum index over the current extents, so that findMostDominantExtremumBetween runs in O[log
+     * data.length] rather than O[idx1 - idx0]. The index is discarded by the next call to dilate().
+     */
+    public void buildRangeIndex() {
+        rangeIndex = new ExtentRangeIndex(extent);
     }
 
     /**
@@ -55,11 +327,25 @@ public class Extrema {
      * specified indices are at least 2 samples apart.
      */
     public int findMostDominantExtremumBetween(int idx0, int idx1) {
+        return findMostDominantExtremumBetween(extent, rangeIndex, idx0, idx1);
+    }
+
+    /**
+     * Find the index of the largest extent between the two specified indices (both non-inclusive), searching
+     * outwards from the center so that ties are broken by picking the more central index. If rangeIndex is non-null,
+     * it must be an index over extent.
+     */
+    static int findMostDominantExtremumBetween(int[] extent, ExtentRangeIndex rangeIndex, int idx0, int idx1) {
         if (idx1 - idx0 < 2) {
             throw new IllegalArgumentException("Specify two indices at least 2 samples apart");
         }
         int centerIdx = (idx0 + idx1) / 2;
         int searchRadius = (idx1 - idx0 - 1) / 2;
+        if (rangeIndex != null) {
+            MUDDLEMetrics.recordGapSearch(0);
+            return rangeIndex.argMaxNearest(centerIdx - searchRadius, centerIdx + searchRadius, centerIdx);
+        }
+        MUDDLEMetrics.recordGapSearch(2 * searchRadius + 1);
         int maxRIdx = centerIdx, maxR = extent[maxRIdx];
         for (int r = 1; r <= searchRadius; r++) {
             int r0 = extent[centerIdx - r];
@@ -0,0 +1,36 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+/** A local minimum or maximum whose extent has been finalized, as published by ExtremumPublisher. */
+public final class ExtremumEvent {
+    public enum Type {
+        MIN, MAX
+    }
+
+    /** Whether the extremum is a local minimum or a local maximum. */
+    public final Type type;
+    /** The index of the extremum in the stream. */
+    public final long index;
+    /** The sample value at the extremum. */
+    public final float value;
+    /** The MUDDLEInverted extent of the extremum (at least 1). */
+    public final int extent;
+
+    public ExtremumEvent(Type type, long index, float value, int extent) {
+        this.type = type;
+        this.index = index;
+        this.value = value;
+        this.extent = extent;
+    }
+
+    @Override
+    public String toString() {
+        return type + "@" + index + "(value=" + value + ", extent=" + extent + ")";
+    }
+}
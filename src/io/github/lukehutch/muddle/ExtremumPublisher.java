@@ -0,0 +1,322 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+
+/**
+ * Flow.Publisher of the local minima and maxima of a sample stream, as they are confirmed by a MUDDLEStream, so that
+ * downstream consumers can react to each extremum without waiting for the whole recording.
+ * 
+ * Samples are pushed by a single producer thread. An extremum with extent >= minExtent is published as an
+ * ExtremumEvent once its extent is finalized, maxRadius samples after it was pushed (or when the publisher is closed,
+ * for the last maxRadius samples), in increasing order of index. The publisher is hot: a subscriber receives the
+ * events finalized after it subscribed.
+ * 
+ * Events are collected into batches of up to batchSize events on the producer thread, and each batch is handed to
+ * each subscriber's buffer of up to bufferCapacity events under a single lock acquisition, so the synchronization
+ * cost is per batch rather than per event (call flush() to publish a partial batch early). Events are delivered to a
+ * subscriber only as far as its demand allows, on whichever thread is draining its buffer (the producer thread, or a
+ * thread calling Subscription.request()), and never concurrently. If a subscriber's buffer is full, the producer
+ * blocks until the subscriber requests more events or cancels, so a slow subscriber slows down the producer rather
+ * than causing events to be dropped or buffered without bound.
+ */
+public class ExtremumPublisher implements Flow.Publisher<ExtremumEvent>, AutoCloseable {
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    private final MUDDLEStream stream;
+    private final int minExtent;
+    private final int bufferCapacity;
+    private final CopyOnWriteArrayList<EventSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /** The batch being collected on the producer thread. */
+    private final ExtremumEvent[] batch;
+    private int batchSize;
+
+    private volatile boolean closed;
+
+    /** Publish extrema with extent >= minExtent, with the default batch size and buffer capacity. */
+    public ExtremumPublisher(int maxRadius, int minExtent) {
+        this(maxRadius, minExtent, DEFAULT_BATCH_SIZE, Flow.defaultBufferSize());
+    }
+
+    public ExtremumPublisher(int maxRadius, int minExtent, int batchSize, int bufferCapacity) {
+        if (minExtent < 1) {
+            throw new IllegalArgumentException("minExtent must be at least 1");
+        }
+        if (batchSize < 1 || bufferCapacity < 1) {
+            throw new IllegalArgumentException("batchSize and bufferCapacity must be at least 1");
+        }
+        this.minExtent = minExtent;
+        this.bufferCapacity = bufferCapacity;
+        this.batch = new ExtremumEvent[batchSize];
+        this.stream = new MUDDLEStream(maxRadius, (t, value, extent, extremumType) -> {
+            if (extent >= minExtent) {
+                batch[this.batchSize++] = new ExtremumEvent(
+                        extremumType == 1 ? ExtremumEvent.Type.MAX : ExtremumEvent.Type.MIN, t, value, extent);
+                if (this.batchSize == batch.length) {
+                    flush();
+                }
+            }
+        });
+    }
+
+    public int getMaxRadius() {
+        return stream.getMaxRadius();
+    }
+
+    public int getMinExtent() {
+        return minExtent;
+    }
+
+    /** Push a chunk of samples, publishing any extrema that are finalized as a result. */
+    public void push(float[] samples, int off, int len) {
+        checkNotClosed();
+        stream.push(samples, off, len);
+    }
+
+    /** Push a chunk of samples. */
+    public void push(float[] samples) {
+        push(samples, 0, samples.length);
+    }
+
+    /** Push the remaining samples in the buffer, advancing its position. */
+    public void push(FloatBuffer samples) {
+        checkNotClosed();
+        stream.push(samples);
+    }
+
+    /** Push a single sample. */
+    public void push(float sample) {
+        checkNotClosed();
+        stream.push(sample);
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("Publisher has been closed");
+        }
+    }
+
+    /** Publish the partial batch of events collected so far. */
+    public void flush() {
+        int n = batchSize;
+        batchSize = 0;
+        if (n > 0) {
+            for (EventSubscription subscription : subscriptions) {
+                subscription.offer(batch, n);
+            }
+        }
+        // Drop references to the published events
+        for (int i = 0; i < n; i++) {
+            batch[i] = null;
+        }
+    }
+
+    /**
+     * Signal the end of the stream: publish the extrema among the last maxRadius samples, then complete each
+     * subscription once its buffered events have been delivered.
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            stream.close();
+            flush();
+            closed = true;
+            for (EventSubscription subscription : subscriptions) {
+                subscription.complete();
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ExtremumEvent> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException();
+        }
+        EventSubscription subscription = new EventSubscription(subscriber);
+        // onSubscribe must be signalled before any other signal (Reactive Streams rule 1.9), so the subscription is
+        // only visible to the producer once onSubscribe has returned
+        subscriber.onSubscribe(subscription);
+        subscriptions.add(subscription);
+        if (subscription.isCancelled()) {
+            // Cancelled within onSubscribe, before it was added, so cancel() could not remove it
+            subscriptions.remove(subscription);
+        } else if (closed) {
+            // close() may or may not have seen the subscription, and completing twice is harmless
+            subscription.complete();
+        }
+    }
+
+    /** The number of current subscribers. */
+    public int getNumSubscribers() {
+        return subscriptions.size();
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** A subscriber's bounded ring buffer of undelivered events, and its outstanding demand. */
+    private class EventSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super ExtremumEvent> subscriber;
+        private final ExtremumEvent[] buffer = new ExtremumEvent[bufferCapacity];
+        // All fields below are guarded by the subscription's monitor
+        /** The buffered events are in buffer[(bufferHead + i) % bufferCapacity], for i in [0, numBuffered). */
+        private int bufferHead, numBuffered;
+        private long demand;
+        private boolean draining, cancelled, completed, terminated;
+        private Throwable requestError;
+
+        EventSubscription(Flow.Subscriber<? super ExtremumEvent> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        /** Called by the producer: append events to the buffer, blocking while the buffer is full. */
+        void offer(ExtremumEvent[] events, int n) {
+            for (int i = 0; i < n;) {
+                synchronized (this) {
+                    while (numBuffered == bufferCapacity && !cancelled) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IllegalStateException("Interrupted while waiting for subscriber demand", e);
+                        }
+                    }
+                    if (cancelled) {
+                        return;
+                    }
+                    for (; i < n && numBuffered < bufferCapacity; i++) {
+                        buffer[(bufferHead + numBuffered++) % bufferCapacity] = events[i];
+                    }
+                }
+                drain();
+            }
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        /** Called by the producer when the publisher is closed. */
+        void complete() {
+            synchronized (this) {
+                completed = true;
+            }
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                if (n <= 0) {
+                    requestError = new IllegalArgumentException("Requested " + n + " events; must be positive");
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                if (!draining) {
+                    // Otherwise the draining thread may still be reading the buffer, and clears it when it is done
+                    clearBuffer();
+                }
+                // Wake the producer, if it is waiting for space
+                notifyAll();
+            }
+            subscriptions.remove(this);
+        }
+
+        /** Drop references to the buffered events. Called with the monitor held. */
+        private void clearBuffer() {
+            for (int i = 0; i < bufferCapacity; i++) {
+                buffer[i] = null;
+            }
+            numBuffered = 0;
+        }
+
+        /**
+         * Deliver buffered events as far as demand allows, then the completion or error signal if due. Only one
+         * thread drains at a time, so signals are never concurrent, and a request() from within onNext just adds to
+         * the demand that the draining thread will satisfy.
+         */
+        private void drain() {
+            synchronized (this) {
+                if (draining || terminated) {
+                    return;
+                }
+                draining = true;
+            }
+            for (;;) {
+                int n, head;
+                Throwable error;
+                boolean complete;
+                synchronized (this) {
+                    error = requestError;
+                    n = (int) Math.min(demand, numBuffered);
+                    complete = completed && numBuffered == 0;
+                    if (cancelled || (error == null && n == 0 && !complete)) {
+                        draining = false;
+                        return;
+                    }
+                    // Reserve the demand for the events delivered below, outside the lock (the producer only
+                    // writes to free slots, so these slots are not overwritten until they are released)
+                    demand -= n;
+                    head = bufferHead;
+                }
+                if (error != null || (complete && n == 0)) {
+                    synchronized (this) {
+                        terminated = true;
+                        cancelled = true;
+                        notifyAll();
+                    }
+                    subscriptions.remove(this);
+                    if (error != null) {
+                        subscriber.onError(error);
+                    } else {
+                        subscriber.onComplete();
+                    }
+                    return;
+                }
+                try {
+                    for (int i = 0; i < n; i++) {
+                        subscriber.onNext(buffer[(head + i) % bufferCapacity]);
+                    }
+                } catch (RuntimeException e) {
+                    // A subscriber that throws from onNext is treated as having cancelled (Reactive Streams rule
+                    // 2.13), rather than failing the producer and the other subscribers
+                    cancel();
+                }
+                synchronized (this) {
+                    if (cancelled) {
+                        clearBuffer();
+                        draining = false;
+                        notifyAll();
+                        return;
+                    }
+                    // Release the delivered slots, and wake the producer if it is waiting for space
+                    for (int i = 0; i < n; i++) {
+                        buffer[(bufferHead + i) % bufferCapacity] = null;
+                    }
+                    bufferHead = (bufferHead + n) % bufferCapacity;
+                    numBuffered -= n;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
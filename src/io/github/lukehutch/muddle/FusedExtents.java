@@ -0,0 +1,355 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.util.Arrays;
+
+/**
+ * Compact extent representation, with the extents of local minima and local maxima fused into one signed extent per
+ * data point (positive for a local maximum, negative for a local minimum, zero for neither), stored in an
+ * ExtentArray of 1, 2 or 4 bytes per element depending on maxRadius.
+ * 
+ * MUDDLE.findPeaks uses about 24 bytes per data point (two Extrema objects, each with two int arrays, plus two int
+ * output buffers), and MUDDLEInverted uses 4 bytes per data point, whereas a FusedExtents uses 1 byte per data point
+ * for maxRadius <= 127, or 2 bytes per data point for maxRadius <= 32767. Extents are computed in chunks, so the
+ * scratch space is O[chunk size + maxRadius] rather than O[data.length].
+ * 
+ * With dilation semantics (ofDilation), findPeaks, findExtrema and the histograms (produceAltFracHist and
+ * produceExtentHist, as computed by RadiusEstimator from dilation extents) run on the fused extents. With
+ * MUDDLEInverted semantics (ofInverted), findMostDominantExtremumBetween, findExtrema and the histograms (as
+ * computed by MUDDLEInverted) do. Algorithms that need the samples themselves, such as the streaming and
+ * out-of-core engines, still work on the samples.
+ */
+public class FusedExtents {
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    final int maxRadius;
+    /** True if the extents have Extrema (dilation) semantics, false if they have MUDDLEInverted semantics. */
+    final boolean dilation;
+    final ExtentArray signedExtent;
+    /**
+     * With dilation semantics, a data point can be both a local minimum and a local maximum if it is the last data
+     * point, or if it or its right neighbour is NaN (since every comparison with NaN is false). These points are
+     * stored with their max extent in signedExtent, and their data indices (in increasing order) and min extents are
+     * stored here.
+     */
+    int[] bothIdxs = new int[0], bothMinExtent = new int[0];
+
+    private FusedExtents(int length, int maxRadius, boolean dilation) {
+        this(ExtentArray.create(length, maxRadius), maxRadius, dilation);
+    }
+
+    /** Wrap signed extents that have already been computed (e.g. loaded from an ExtentIndexFile). */
+    FusedExtents(ExtentArray signedExtent, int maxRadius, boolean dilation) {
+        if (maxRadius < 0) {
+            throw new IllegalArgumentException("maxRadius must be non-negative");
+        }
+        this.maxRadius = maxRadius;
+        this.dilation = dilation;
+        this.signedExtent = signedExtent;
+    }
+
+    /**
+     * Compute the extents that Extrema.dilate() gives after maxRadius dilations, for both extremum types, so that
+     * findPeaks(radius, spanGaps) can be called for any radius <= maxRadius.
+     */
+    public static FusedExtents ofDilation(float[] data, int maxRadius) {
+        FusedExtents fused = new FusedExtents(data.length, maxRadius, /* dilation = */true);
+        int n = data.length;
+        int chunkSize = Math.min(n, CHUNK_SIZE);
+        int[] minExtent = new int[chunkSize], maxExtent = new int[chunkSize];
+        int windowSize = (int) Math.min(n, chunkSize + 2L * maxRadius);
+        int[] stack = new int[windowSize], leftDist = new int[windowSize];
+        int numBoth = 0;
+        for (int from = 0; from < n; from += chunkSize) {
+            int to = Math.min(n, from + chunkSize);
+            Extents.dilationExtent(data, /* isMax = */false, maxRadius, minExtent, from, from, to, stack, leftDist);
+            Extents.dilationExtent(data, /* isMax = */true, maxRadius, maxExtent, from, from, to, stack, leftDist);
+            for (int t = from; t < to; t++) {
+                int minExt = minExtent[t - from], maxExt = maxExtent[t - from];
+                fused.signedExtent.set(t, maxExt > 0 ? maxExt : -minExt);
+                if (maxExt > 0 && minExt > 0) {
+                    // Not dominated at radius 1 by data[t + 1] as either type, so t is the last data point, or
+                    // data[t] or data[t + 1] is NaN
+                    if (numBoth == fused.bothIdxs.length) {
+                        fused.bothIdxs = Arrays.copyOf(fused.bothIdxs, Math.max(4, 2 * numBoth));
+                        fused.bothMinExtent = Arrays.copyOf(fused.bothMinExtent, fused.bothIdxs.length);
+                    }
+                    fused.bothIdxs[numBoth] = t;
+                    fused.bothMinExtent[numBoth++] = minExt;
+                }
+            }
+        }
+        fused.bothIdxs = Arrays.copyOf(fused.bothIdxs, numBoth);
+        fused.bothMinExtent = Arrays.copyOf(fused.bothMinExtent, numBoth);
+        return fused;
+    }
+
+    /** Compute the same extents as MUDDLEInverted(data, maxRadius), signed by extremum type. */
+    public static FusedExtents ofInverted(float[] data, int maxRadius) {
+        FusedExtents fused = new FusedExtents(data.length, maxRadius, /* dilation = */false);
+        int n = data.length;
+        int chunkSize = Math.min(n, CHUNK_SIZE);
+        int[] extent = new int[chunkSize];
+        int windowSize = (int) Math.min(n, chunkSize + 2L * maxRadius);
+        int[] stack = new int[windowSize], leftDist = new int[windowSize];
+        for (int from = 0; from < n; from += chunkSize) {
+            int to = Math.min(n, from + chunkSize);
+            Extents.nearestDominator(data, maxRadius, extent, from, from, to, stack, leftDist);
+            for (int t = from; t < to; t++) {
+                // The extent of the last data point is always 0, and a point with a non-zero extent is not dominated
+                // by data[t + 1] (an equal or NaN neighbour dominates it), so it is strictly greater or less than
+                // data[t + 1], and its extremum type is given by the sign
+                int ext = extent[t - from];
+                if (ext > 0 && !(data[t] > data[t + 1]) && !(data[t] < data[t + 1])) {
+                    throw new IllegalStateException("Data point " + t + " has extent " + ext
+                            + ", but is neither greater nor less than the next data point");
+                }
+                fused.signedExtent.set(t, ext > 0 && data[t] < data[t + 1] ? -ext : ext);
+            }
+        }
+        return fused;
+    }
+
+    public int length() {
+        return signedExtent.length();
+    }
+
+    public int getMaxRadius() {
+        return maxRadius;
+    }
+
+    /** The number of bits used to store the extent of each data point. */
+    public int bitsPerElement() {
+        return signedExtent.bitsPerElement();
+    }
+
+    /**
+     * The signed extent of data point t: positive for a local maximum, negative for a local minimum. (With dilation
+     * semantics, the last data point, and NaN data points and their left neighbours, may be both -- use extent(t,
+     * isMax) to get both extents.)
+     */
+    public int signedExtent(int t) {
+        return signedExtent.get(t);
+    }
+
+    /** The extent of data point t as a local maximum (if isMax is true) or a local minimum, or 0 if neither. */
+    public int extent(int t, boolean isMax) {
+        int e = signedExtent.get(t);
+        if (isMax || e <= 0) {
+            return isMax ? Math.max(e, 0) : -e;
+        }
+        if (bothIdxs.length == 0) {
+            return 0;
+        }
+        int i = Arrays.binarySearch(bothIdxs, t);
+        return i >= 0 ? bothMinExtent[i] : 0;
+    }
+
+    /** The number of local minima (if isMax is false) or local maxima with extent >= scale, for scale >= 1. */
+    public int countExtrema(int scale, boolean isMax) {
+        checkScale(scale);
+        int count = 0;
+        for (int t = 0, n = signedExtent.length(); t < n; t++) {
+            if (extent(t, isMax) >= scale) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns an int result[2][], with the data indices of local minima with extent >= scale in result[0] and of
+     * local maxima with extent >= scale in result[1], for scale >= 1.
+     */
+    public int[][] findExtrema(int scale) {
+        checkScale(scale);
+        int[] minIdxs = new int[countExtrema(scale, /* isMax = */false)];
+        int[] maxIdxs = new int[countExtrema(scale, /* isMax = */true)];
+        int numMinIdxs = 0, numMaxIdxs = 0;
+        for (int t = 0, n = signedExtent.length(); t < n; t++) {
+            if (extent(t, /* isMax = */false) >= scale) {
+                minIdxs[numMinIdxs++] = t;
+            }
+            if (extent(t, /* isMax = */true) >= scale) {
+                maxIdxs[numMaxIdxs++] = t;
+            }
+        }
+        return new int[][] { minIdxs, maxIdxs };
+    }
+
+    /**
+     * The ScaleHistogram of the extrema. With MUDDLEInverted semantics, this is the same as
+     * ScaleHistogram.of(new MUDDLEInverted(data, maxRadius)). With dilation semantics, it counts the extrema in the
+     * same order as MUDDLE.findPeaks (a data point that is both a minimum and a maximum is counted as a minimum
+     * first), as RadiusEstimator.alternationHistogram(data, maxRadius) does.
+     */
+    public ScaleHistogram scaleHistogram() {
+        ScaleHistogram hist = new ScaleHistogram(dilation ? maxRadius : Math.max(maxRadius, 1));
+        for (int t = 0, n = signedExtent.length(); t < n; t++) {
+            int e = signedExtent.get(t);
+            if (e == 0) {
+                // Optimization -- most data points are not extrema, even at r = 1
+                continue;
+            }
+            if (dilation) {
+                hist.add(t, -1, extent(t, /* isMax = */false));
+                hist.add(t, 1, extent(t, /* isMax = */true));
+            } else {
+                hist.add(t, e > 0 ? 1 : -1, Math.abs(e));
+            }
+        }
+        return hist;
+    }
+
+    /**
+     * Estimate the natural period and optimal radius from the alternation histogram of the extrema. Gives the same
+     * result as MUDDLEInverted.produceAltFracHist() with MUDDLEInverted semantics, or as
+     * new RadiusEstimate(RadiusEstimator.alternationHistogram(data, maxRadius)) with dilation semantics.
+     */
+    public RadiusEstimate produceAltFracHist() {
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.HISTOGRAM);
+        ScaleHistogram hist = scaleHistogram();
+        RadiusEstimate estimate = new RadiusEstimate(
+                dilation ? hist.alternationHist() : hist.alternationPerExtremumHist());
+        MUDDLEMetrics.end(span, length());
+        return estimate;
+    }
+
+    /**
+     * Returns the histogram of the separations of adjacent same-type extrema, resampled onto a common separation
+     * axis and combined with its second harmonic (see ScaleHistogram.harmonicSeparationHist()). Gives the same
+     * result as MUDDLEInverted.produceExtentHist() with MUDDLEInverted semantics.
+     */
+    public float[] produceExtentHist() {
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.HISTOGRAM);
+        float[] harmonicCombinedHist = scaleHistogram().harmonicSeparationHist();
+        MUDDLEMetrics.end(span, length());
+        return harmonicCombinedHist;
+    }
+
+    private static void checkScale(int scale) {
+        if (scale < 1) {
+            throw new IllegalArgumentException("scale must be at least 1");
+        }
+    }
+
+    /**
+     * Returns the same result as MUDDLE.findPeaks(data, radius, spanGaps), for 0 <= radius <= maxRadius. Requires
+     * extents built with ofDilation().
+     */
+    public int[][] findPeaks(int radius, boolean spanGaps) {
+        if (!dilation) {
+            throw new IllegalStateException("findPeaks requires extents built with ofDilation()");
+        }
+        if (radius < 0 || radius > maxRadius) {
+            throw new IllegalArgumentException("radius must be in the range [0, " + maxRadius + "]");
+        }
+        int n = signedExtent.length();
+        int numMinLive = 0, numMaxLive = 0;
+        for (int t = 0; t < n; t++) {
+            if (extent(t, /* isMax = */false) >= radius) {
+                numMinLive++;
+            }
+            if (extent(t, /* isMax = */true) >= radius) {
+                numMaxLive++;
+            }
+        }
+        // Each gap adds at most one extremum of the opposite type
+        int[] minIdxs = new int[spanGaps ? numMinLive + numMaxLive : numMinLive];
+        int[] maxIdxs = new int[spanGaps ? numMinLive + numMaxLive : numMaxLive];
+        int numMinIdxs = 0, numMaxIdxs = 0;
+        int prevExtremumType = -1, prevDataIdx = 0;
+        for (int t = 0; t < n; t++) {
+            // A data point may be both a minimum and a maximum (see bothIdxs) -- the min comes first
+            for (int extremumType = 0; extremumType < 2; extremumType++) {
+                if (extent(t, extremumType == 1) < radius) {
+                    continue;
+                }
+                if (spanGaps && extremumType == prevExtremumType) {
+                    // Found two adjacent extrema of same type -- add the most dominant extremum of the opposite type
+                    // between the two
+                    if (extremumType == 1) {
+                        minIdxs[numMinIdxs++] = findMostDominantDilatedExtremumBetween(prevDataIdx, t, false);
+                    } else {
+                        maxIdxs[numMaxIdxs++] = findMostDominantDilatedExtremumBetween(prevDataIdx, t, true);
+                    }
+                }
+                if (extremumType == 1) {
+                    maxIdxs[numMaxIdxs++] = t;
+                } else {
+                    minIdxs[numMinIdxs++] = t;
+                }
+                prevExtremumType = extremumType;
+                prevDataIdx = t;
+            }
+        }
+        return new int[][] { numMinIdxs == minIdxs.length ? minIdxs : Arrays.copyOf(minIdxs, numMinIdxs),
+                numMaxIdxs == maxIdxs.length ? maxIdxs : Arrays.copyOf(maxIdxs, numMaxIdxs) };
+    }
+
+    /**
+     * Same as Extrema.findMostDominantExtremumBetween(idx0, idx1), for the extrema of the specified type. Extents are
+     * capped at maxRadius rather than at the current radius, but this gives the same result, since extrema of the
+     * opposite type within a gap between adjacent same-type extrema at radius r all have extent < r.
+     */
+    private int findMostDominantDilatedExtremumBetween(int idx0, int idx1, boolean isMax) {
+        int centerIdx = (idx0 + idx1) / 2;
+        int searchRadius = (idx1 - idx0 - 1) / 2;
+        MUDDLEMetrics.recordGapSearch(2 * searchRadius + 1);
+        int maxRIdx = centerIdx, maxR = extent(centerIdx, isMax);
+        for (int r = 1; r <= searchRadius; r++) {
+            int r0 = extent(centerIdx - r, isMax);
+            if (r0 > maxR) {
+                maxR = r0;
+                maxRIdx = centerIdx - r;
+            }
+            int r1 = extent(centerIdx + r, isMax);
+            if (r1 > maxR) {
+                maxR = r1;
+                maxRIdx = centerIdx + r;
+            }
+        }
+        return maxRIdx;
+    }
+
+    /**
+     * Same as MUDDLEInverted.findMostDominantExtremumBetween(t0, t1, maxType). Requires extents built with
+     * ofInverted().
+     */
+    public int findMostDominantExtremumBetween(int t0, int t1, boolean maxType) {
+        if (dilation) {
+            throw new IllegalStateException("findMostDominantExtremumBetween requires extents built with ofInverted()");
+        }
+        if (t1 - t0 < 2) {
+            throw new IllegalArgumentException("Specify two indices at least 2 samples apart");
+        }
+        int searchRadius = (t1 - t0 - 1) / 2;
+        int tCenter = (t0 + t1) / 2;
+        MUDDLEMetrics.recordGapSearch(t1 - t0 - 1);
+        // The center point is a candidate regardless of its type
+        int tMaxExtent = tCenter, maxExtent = Math.abs(signedExtent.get(tCenter));
+        for (int r = 1; r <= searchRadius; r++) {
+            int tLeft = tCenter - r, tRight = tCenter + r;
+            // In case there's an odd number of indices between idx0 and idx1, don't pick idx0
+            if (tLeft > t0) {
+                int r0 = extent(tLeft, maxType);
+                if (r0 > maxExtent) {
+                    maxExtent = r0;
+                    tMaxExtent = tLeft;
+                }
+            }
+            int r1 = extent(tRight, maxType);
+            if (r1 > maxExtent) {
+                maxExtent = r1;
+                tMaxExtent = tRight;
+            }
+        }
+        return tMaxExtent;
+    }
+}
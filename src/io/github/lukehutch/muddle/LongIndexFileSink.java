@@ -0,0 +1,81 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes long indices to a raw binary file of little-endian int64 values, through a fixed-size off-heap buffer, so
+ * heap use is independent of the number of indices. The file can be read back with Utils.mapInt64 (one window at a
+ * time with Utils.mapInt64(filename, from, count), if it holds more than 2^28 indices).
+ */
+public class LongIndexFileSink implements LongIndexSink {
+    private final FileChannel channel;
+    private final ByteBuffer buf;
+    private long count;
+
+    public LongIndexFileSink(String filename) {
+        this(filename, 64 * 1024);
+    }
+
+    public LongIndexFileSink(String filename, int bufferBytes) {
+        if (bufferBytes < 8) {
+            throw new IllegalArgumentException("bufferBytes must be at least 8");
+        }
+        try {
+            channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        buf = ByteBuffer.allocateDirect(bufferBytes & ~7).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void add(long index) {
+        if (!buf.hasRemaining()) {
+            flush();
+        }
+        buf.putLong(index);
+        count++;
+    }
+
+    /** The number of indices added so far. */
+    public long getCount() {
+        return count;
+    }
+
+    private void flush() {
+        buf.flip();
+        try {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        buf.clear();
+    }
+
+    @Override
+    public void close() {
+        if (channel.isOpen()) {
+            flush();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+/** Receives a stream of long data indices, in increasing order. */
+public interface LongIndexSink extends AutoCloseable {
+    void add(long index);
+
+    /** Flush any buffered indices and release resources. */
+    @Override
+    void close();
+}
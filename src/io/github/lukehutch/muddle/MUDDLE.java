@@ -18,20 +18,203 @@ public class MUDDLE {
      * 1.)
      */
     public static int[][] findPeaks(float[] data, int radius, boolean spanGaps) {
+        return findPeaks(data, radius, spanGaps, /* useRangeIndex = */false);
+    }
+
+    /**
+     * As findPeaks(data, radius, spanGaps), but if useRangeIndex is true, builds a range-maximum index over the
+     * extents after dilation, so that the search for the most dominant extremum in each gap takes O[log data.length]
+     * time rather than time proportional to the gap length. Gives identical results.
+     */
+    public static int[][] findPeaks(float[] data, int radius, boolean spanGaps, boolean useRangeIndex) {
+        return findPeaks(Samples.of(data), radius, spanGaps, useRangeIndex);
+    }
+
+    /** As findPeaks(float[], int, boolean), for double[] data. The data is read in place, without conversion. */
+    public static int[][] findPeaks(double[] data, int radius, boolean spanGaps) {
+        return findPeaks(Samples.of(data), radius, spanGaps, /* useRangeIndex = */false);
+    }
+
+    /** As findPeaks(float[], int, boolean), for int[] data. The data is read in place, without conversion. */
+    public static int[][] findPeaks(int[] data, int radius, boolean spanGaps) {
+        return findPeaks(Samples.of(data), radius, spanGaps, /* useRangeIndex = */false);
+    }
+
+    /** As findPeaks(float[], int, boolean), for short[] data. The data is read in place, without conversion. */
+    public static int[][] findPeaks(short[] data, int radius, boolean spanGaps) {
+        return findPeaks(Samples.of(data), radius, spanGaps, /* useRangeIndex = */false);
+    }
+
+    /** As findPeaks(float[], int, boolean, boolean), for samples of any type (e.g. a FloatBuffer or DoubleBuffer). */
+    public static int[][] findPeaks(Samples data, int radius, boolean spanGaps, boolean useRangeIndex) {
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.DILATION);
         Extrema minima = new Extrema(data, /* isMax = */false);
         Extrema maxima = new Extrema(data, /* isMax = */true);
         for (int r = 1; r <= radius; r++) {
             minima.dilate();
             maxima.dilate();
         }
+        MUDDLEMetrics.end(span, data.length());
+
+        // Gaps are filled during the merge, so with spanGaps the whole merge is timed as span-gap filling
+        span = MUDDLEMetrics.begin(spanGaps ? MUDDLEMetrics.Phase.SPAN_GAPS : MUDDLEMetrics.Phase.MERGE);
+        if (spanGaps && useRangeIndex) {
+            minima.buildRangeIndex();
+            maxima.buildRangeIndex();
+        }
+        int[][] peaks = mergePeaks(minima.liveExtremumDataIdx, minima.numLiveExtrema, minima.extent,
+                minima.rangeIndex, maxima.liveExtremumDataIdx, maxima.numLiveExtrema, maxima.extent,
+                maxima.rangeIndex, spanGaps);
+        MUDDLEMetrics.end(span, data.length());
+        return peaks;
+    }
+
+    /**
+     * Find the k most dominant local minima and the k most dominant local maxima, without choosing a radius. Returns
+     * an int result[2][], with the data indices of the minima in result[0] and of the maxima in result[1], each of
+     * length min(k, data.length), in order of decreasing dominance.
+     * 
+     * Extrema are dilated one radius at a time, stopping as soon as at most k extrema of the type are still live, so
+     * no more dilations are run than are needed to separate the k most dominant extrema from the rest. (Each type
+     * stops independently, after at most data.length - 1 dilations, when only one extremum can remain, unless the data
+     * contains NaN.)
+     * 
+     * Ordering and tie breaking: extrema are ranked by extent (the radius up to which they were not dominated, as
+     * for Extrema.dilate()), then by value (larger first for maxima, smaller first for minima), then by lower data
+     * index. The extrema still live when dilation stops rank above those dominated by the last dilation, which are
+     * used to fill the remaining places. Since dilation stops early, the extrema still live are not ranked by their
+     * full extent, only by value and index.
+     */
+    public static int[][] findTopKPeaks(float[] data, int k) {
+        return findTopKPeaks(Samples.of(data), k);
+    }
+
+    /** As findTopKPeaks(float[], int), for samples of any type. */
+    public static int[][] findTopKPeaks(Samples data, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.DILATION);
+        int[][] peaks = new int[][] { findTopK(data, /* isMax = */false, k), findTopK(data, /* isMax = */true, k) };
+        MUDDLEMetrics.end(span, data.length());
+        return peaks;
+    }
+
+    /** The k most dominant extrema of one type, in order of decreasing dominance. */
+    private static int[] findTopK(Samples data, boolean isMax, int k) {
+        Extrema extrema = new Extrema(data, isMax);
+        int[] prevLive = new int[0];
+        int numPrevLive = 0;
+        // NaN samples are never dominated, so also stop when no more extrema can be dominated
+        while (extrema.numLiveExtrema > k && extrema.radius < data.length() - 1) {
+            // Keep the extrema that are live before the dilation, in case this is the last dilation
+            if (prevLive.length < extrema.numLiveExtrema) {
+                prevLive = new int[extrema.numLiveExtrema];
+            }
+            numPrevLive = extrema.numLiveExtrema;
+            System.arraycopy(extrema.liveExtremumDataIdx, 0, prevLive, 0, numPrevLive);
+            extrema.dilate();
+        }
+        int[] top = new int[Math.min(k, data.length())];
+        int numLive = Math.min(extrema.numLiveExtrema, top.length);
+        System.arraycopy(selectMostDominant(data, isMax, extrema.liveExtremumDataIdx, extrema.numLiveExtrema,
+                numLive), 0, top, 0, numLive);
+        if (numLive < top.length) {
+            // Fill the remaining places from the extrema that were dominated by the last dilation
+            int numDominated = 0;
+            for (int i = 0; i < numPrevLive; i++) {
+                if (extrema.extent[prevLive[i]] < extrema.radius) {
+                    prevLive[numDominated++] = prevLive[i];
+                }
+            }
+            int[] fill = selectMostDominant(data, isMax, prevLive, numDominated, top.length - numLive);
+            System.arraycopy(fill, 0, top, numLive, fill.length);
+        }
+        return top;
+    }
+
+    /**
+     * Select the k most dominant of the first numIdxs data indices in idxs, ranked by value then by lower index, in
+     * decreasing order of dominance. Uses a bounded heap, in O[numIdxs log k].
+     */
+    private static int[] selectMostDominant(Samples data, boolean isMax, int[] idxs, int numIdxs, int k) {
+        // The least dominant of the selected indices is at the root of the heap
+        int[] heap = new int[Math.min(k, numIdxs)];
+        int heapSize = 0;
+        for (int i = 0; i < numIdxs; i++) {
+            int t = idxs[i];
+            if (heapSize < heap.length) {
+                int j = heapSize++;
+                for (int parent; j > 0 && moreDominant(data, isMax, heap[parent = (j - 1) / 2], t); j = parent) {
+                    heap[j] = heap[parent];
+                }
+                heap[j] = t;
+            } else if (heapSize > 0 && moreDominant(data, isMax, t, heap[0])) {
+                siftDown(data, isMax, heap, heapSize, t);
+            }
+        }
+        // Pop the least dominant index first, filling the result from the end
+        int[] result = new int[heapSize];
+        for (int i = heapSize - 1; i >= 0; i--) {
+            result[i] = heap[0];
+            if (--heapSize > 0) {
+                siftDown(data, isMax, heap, heapSize, heap[heapSize]);
+            }
+        }
+        return result;
+    }
 
-        int[] maxIdxs = new int[data.length], minIdxs = new int[data.length];
+    /** Replace the root of the heap with t, and restore the heap order. */
+    private static void siftDown(Samples data, boolean isMax, int[] heap, int heapSize, int t) {
+        int j = 0;
+        for (int child; (child = 2 * j + 1) < heapSize; j = child) {
+            if (child + 1 < heapSize && moreDominant(data, isMax, heap[child], heap[child + 1])) {
+                child++;
+            }
+            if (!moreDominant(data, isMax, t, heap[child])) {
+                break;
+            }
+            heap[j] = heap[child];
+        }
+        heap[j] = t;
+    }
+
+    /** Returns true if extremum a ranks above extremum b of the same extent: by value, then by lower index. */
+    private static boolean moreDominant(Samples data, boolean isMax, int a, int b) {
+        boolean aBeyondB = isMax ? data.greater(a, b) : data.greater(b, a);
+        boolean bBeyondA = isMax ? data.greater(b, a) : data.greater(a, b);
+        return aBeyondB || (!bBeyondA && a < b);
+    }
+
+    /**
+     * Merge the sorted data indices of live minima and live maxima into alternating peaks, as for findPeaks. If
+     * spanGaps is true, then between each pair of adjacent same-type extrema, the most dominant extremum of the
+     * opposite type is found using the extents (and optional range indices) of the opposite type.
+     */
+    static int[][] mergePeaks(int[] minLiveIdxs, int numMinLive, int[] minExtent, ExtentRangeIndex minRangeIndex,
+            int[] maxLiveIdxs, int numMaxLive, int[] maxExtent, ExtentRangeIndex maxRangeIndex, boolean spanGaps) {
+        // Each gap adds at most one extremum of the opposite type
+        int[] maxIdxs = new int[numMinLive + numMaxLive], minIdxs = new int[numMinLive + numMaxLive];
+        int[] numIdxs = new int[2];
+        mergePeaks(minLiveIdxs, numMinLive, minExtent, minRangeIndex, maxLiveIdxs, numMaxLive, maxExtent,
+                maxRangeIndex, spanGaps, minIdxs, maxIdxs, numIdxs);
+        return new int[][] { Arrays.copyOf(minIdxs, numIdxs[0]), Arrays.copyOf(maxIdxs, numIdxs[1]) };
+    }
+
+    /**
+     * Same as mergePeaks, but writes the data indices of the minima and maxima to minIdxs and maxIdxs, and their
+     * counts to numIdxs[0] and numIdxs[1], without allocating. The output arrays must each be at least as long as the
+     * data (the number of indices of each type is at most numMinLive + numMaxLive - 1, other than at radius 0).
+     */
+    static void mergePeaks(int[] minLiveIdxs, int numMinLive, int[] minExtent, ExtentRangeIndex minRangeIndex,
+            int[] maxLiveIdxs, int numMaxLive, int[] maxExtent, ExtentRangeIndex maxRangeIndex, boolean spanGaps,
+            int[] minIdxs, int[] maxIdxs, int[] numIdxs) {
         int numMaxIdxs = 0, numMinIdxs = 0;
         int idxMin = 0, idxMax = 0;
         int prevExtremumType = -1, prevDataIdx = 0;
-        while (idxMin < minima.numLiveExtrema || idxMax < maxima.numLiveExtrema) {
-            int dataIdxMin = idxMin < minima.numLiveExtrema ? minima.liveExtremumDataIdx[idxMin] : data.length;
-            int dataIdxMax = idxMax < maxima.numLiveExtrema ? maxima.liveExtremumDataIdx[idxMax] : data.length;
+        while (idxMin < numMinLive || idxMax < numMaxLive) {
+            int dataIdxMin = idxMin < numMinLive ? minLiveIdxs[idxMin] : Integer.MAX_VALUE;
+            int dataIdxMax = idxMax < numMaxLive ? maxLiveIdxs[idxMax] : Integer.MAX_VALUE;
             int currDataIdx, extremumType;
             if (dataIdxMax < dataIdxMin) {
                 // Next extremum is a local maximum
@@ -52,8 +235,9 @@ public class MUDDLE {
                 // TODO: test simply picking the largest/smallest value over the range between the pair of adjacent
                 // extrema.
                 // TODO: the difference is picking the widest extremum (dominant over the widest range) vs. the tallest.
-                Extrema otherTypeExtrema = extremumType == 1 ? minima : maxima;
-                int maxRadiusX = otherTypeExtrema.findMostDominantExtremumBetween(prevDataIdx, currDataIdx);
+                int maxRadiusX = extremumType == 1
+                        ? Extrema.findMostDominantExtremumBetween(minExtent, minRangeIndex, prevDataIdx, currDataIdx)
+                        : Extrema.findMostDominantExtremumBetween(maxExtent, maxRangeIndex, prevDataIdx, currDataIdx);
                 // Add the opposite-type extremum into the output
                 if (extremumType == 1) {
                     minIdxs[numMinIdxs++] = maxRadiusX;
@@ -71,48 +255,15 @@ public class MUDDLE {
             prevExtremumType = extremumType;
             prevDataIdx = currDataIdx;
         }
-        return new int[][] { Arrays.copyOf(minIdxs, numMinIdxs), Arrays.copyOf(maxIdxs, numMaxIdxs) };
+        numIdxs[0] = numMinIdxs;
+        numIdxs[1] = numMaxIdxs;
     }
 
+    /**
+     * Returns hist[r], the fraction of adjacent pairs of extrema at radius r that are of opposite type, for 1 <= r <=
+     * maxRadius. See RadiusEstimator.alternationHistogram.
+     */
     public static float[] generateAlternatingExtremumTypeFractionHistogram(float[] data, int maxRadius) {
-
-        float[] alternationHist = new float[maxRadius + 1];
-        Extrema minima = new Extrema(data, /* isMax = */false);
-        Extrema maxima = new Extrema(data, /* isMax = */true);
-        for (int r = 1; r <= maxRadius; r++) {
-            minima.dilate();
-            maxima.dilate();
-
-            int numSame = 0, numDiff = 0;
-            int idxMin = 0, idxMax = 0;
-            int prevExtremumType = -1;
-            while (idxMin < minima.numLiveExtrema || idxMax < maxima.numLiveExtrema) {
-                int dataIdxMin = idxMin < minima.numLiveExtrema ? minima.liveExtremumDataIdx[idxMin] : data.length;
-                int dataIdxMax = idxMax < maxima.numLiveExtrema ? maxima.liveExtremumDataIdx[idxMax] : data.length;
-                int extremumType;
-                if (dataIdxMax < dataIdxMin) {
-                    // Next extremum is a local maximum
-                    idxMax++;
-                    extremumType = 1;
-                } else {
-                    // Next extremum is a local minimum
-                    idxMin++;
-                    extremumType = 0;
-                }
-                if (prevExtremumType != -1) {
-                    if (extremumType == prevExtremumType) {
-                        numSame++;
-                    } else {
-                        numDiff++;
-                    }
-                }
-                prevExtremumType = extremumType;
-            }
-            int denom = numSame + numDiff;
-            alternationHist[r] = denom == 0 ? 0.0f : (float) numDiff / (float) denom;
-            
-            System.out.println((minima.numLiveExtrema + maxima.numLiveExtrema)*.5 + "\t" + alternationHist[r]);
-        }
-        return alternationHist;
+        return RadiusEstimator.alternationHistogram(data, maxRadius);
     }
 }
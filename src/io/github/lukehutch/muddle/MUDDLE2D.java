@@ -0,0 +1,191 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * 2D version of the MUDDLEInverted decomposition, for images, spectrograms and other 2D grids stored in row-major
+ * order.
+ * 
+ * The neighbourhood of a pixel at radius r is the ring of pixels at Chebyshev distance r (the boundary of the (2r +
+ * 1) x (2r + 1) square centered on the pixel). As in 1D, ties are broken by raster order: a pixel is a local max at
+ * radius r if it is >= every ring pixel that precedes it in raster order, and > every ring pixel that follows it
+ * (and vice versa for a local min). The extremum type is fixed at r = 1, and extent[i] is the last radius at which
+ * pixel i is still an extremum of that type, limited by maxRadius and by the distance to the edge of the grid.
+ * 
+ * Extents are computed by probing one ring at a time, so the cost for a pixel is O[extent^2]. Same-type extrema with
+ * extent >= e are more than e pixels apart, so there are O[numPixels / e^2] of them, and the total cost is
+ * O[numPixels * log maxRadius]. The grid is split into square tiles, so that the dense radius-1 test for all pixels
+ * in a tile (and most of the probing for the tile's extrema) works within a cache-sized block of rows; each tile reads
+ * a halo of up to maxRadius pixels around it. Tiles are independent, so they can be processed in parallel.
+ */
+public class MUDDLE2D {
+    final float[] data;
+    final int width, height;
+    final int maxRadius;
+    final int[] extent;
+
+    /** The default tile size, in pixels along each side. */
+    public static final int DEFAULT_TILE_SIZE = 64;
+
+    /** Perform a 2D decomposition of a width x height grid, single-threaded. */
+    public MUDDLE2D(float[] data, int width, int height, int maxRadius) {
+        this(data, width, height, maxRadius, null, DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * Perform a 2D decomposition of a width x height grid, processing tiles of tileSize x tileSize pixels on the pool
+     * (or on the calling thread, if pool is null).
+     */
+    public MUDDLE2D(float[] data, int width, int height, int maxRadius, ForkJoinPool pool, int tileSize) {
+        if (width < 0 || height < 0 || (long) width * height != data.length) {
+            throw new IllegalArgumentException("data.length must be width * height");
+        }
+        if (maxRadius < 0) {
+            throw new IllegalArgumentException("maxRadius must be non-negative");
+        }
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("tileSize must be at least 1");
+        }
+        this.data = data;
+        this.width = width;
+        this.height = height;
+        this.maxRadius = maxRadius;
+        this.extent = new int[data.length];
+
+        int numTilesX = (width + tileSize - 1) / tileSize, numTilesY = (height + tileSize - 1) / tileSize;
+        ParallelMUDDLE.ChunkKernel tileKernel = tile -> {
+            int x0 = (tile % numTilesX) * tileSize, y0 = (tile / numTilesX) * tileSize;
+            computeTile(x0, y0, Math.min(width, x0 + tileSize), Math.min(height, y0 + tileSize));
+        };
+        int numTiles = numTilesX * numTilesY;
+        if (pool == null) {
+            for (int tile = 0; tile < numTiles; tile++) {
+                tileKernel.run(tile);
+            }
+        } else {
+            ParallelMUDDLE.forEachChunk(pool, numTiles, tileKernel);
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getMaxRadius() {
+        return maxRadius;
+    }
+
+    /** The extent of the pixel at (x, y). */
+    public int extent(int x, int y) {
+        return extent[y * width + x];
+    }
+
+    /** Returns 1 if the pixel at (x, y) is a local max, -1 if it is a local min, or 0 if its extent is 0. */
+    public int extremumType(int x, int y) {
+        int i = y * width + x;
+        // A pixel with non-zero extent is not on the right edge, so its right neighbour is in its ring at radius 1
+        return extent[i] == 0 ? 0 : data[i] > data[i + 1] ? 1 : -1;
+    }
+
+    /**
+     * Returns an int result[2][], with the pixel indices (y * width + x) of local minima with extent >= scale in
+     * result[0] and of local maxima with extent >= scale in result[1], in raster order.
+     */
+    public int[][] findExtrema(int scale) {
+        int numMin = 0, numMax = 0;
+        int[] minIdxs = new int[16], maxIdxs = new int[16];
+        for (int i = 0; i < extent.length; i++) {
+            if (extent[i] >= scale && extent[i] > 0) {
+                if (data[i] > data[i + 1]) {
+                    if (numMax == maxIdxs.length) {
+                        maxIdxs = Arrays.copyOf(maxIdxs, numMax * 2);
+                    }
+                    maxIdxs[numMax++] = i;
+                } else {
+                    if (numMin == minIdxs.length) {
+                        minIdxs = Arrays.copyOf(minIdxs, numMin * 2);
+                    }
+                    minIdxs[numMin++] = i;
+                }
+            }
+        }
+        return new int[][] { Arrays.copyOf(minIdxs, numMin), Arrays.copyOf(maxIdxs, numMax) };
+    }
+
+    /** Compute the extents of the pixels in the tile [x0, x1) x [y0, y1). */
+    private void computeTile(int x0, int y0, int x1, int y1) {
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0, i = y * width + x0; x < x1; x++, i++) {
+                // Rings must lie entirely within the grid
+                int limit = Math.min(Math.min(maxRadius, Math.min(x, width - 1 - x)), Math.min(y, height - 1 - y));
+                if (limit == 0) {
+                    extent[i] = 0;
+                    continue;
+                }
+                float d = data[i];
+                // Fix extremum type at r == 1 -- a pixel can't be both a local maximum and a local minimum
+                boolean isMax;
+                if (isExtremumAtRadius(/* isMax = */true, x, y, 1, d)) {
+                    isMax = true;
+                } else if (isExtremumAtRadius(/* isMax = */false, x, y, 1, d)) {
+                    isMax = false;
+                } else {
+                    extent[i] = 0;
+                    continue;
+                }
+                int r = 2;
+                while (r <= limit && isExtremumAtRadius(isMax, x, y, r, d)) {
+                    r++;
+                }
+                extent[i] = r - 1;
+            }
+        }
+    }
+
+    /**
+     * Returns true if the pixel at (x, y) with value d is a local max (or min) with respect to the ring at radius r.
+     * Written in terms of >= and > (rather than their negations) to match the NaN behaviour of MUDDLEInverted.
+     */
+    private boolean isExtremumAtRadius(boolean isMax, int x, int y, int r, float d) {
+        int w = width;
+        // Top row of ring: all predecessors in raster order
+        for (int j = (y - r) * w + x - r, jEnd = j + 2 * r; j <= jEnd; j++) {
+            if (!(isMax ? d >= data[j] : d <= data[j])) {
+                return false;
+            }
+        }
+        // Bottom row of ring: all successors in raster order
+        for (int j = (y + r) * w + x - r, jEnd = j + 2 * r; j <= jEnd; j++) {
+            if (!(isMax ? d > data[j] : d < data[j])) {
+                return false;
+            }
+        }
+        // Left and right columns of ring: predecessors above row y (and on row y, for the left column), successors
+        // below row y (and on row y, for the right column)
+        for (int yy = y - r + 1, row = yy * w; yy < y + r; yy++, row += w) {
+            float left = data[row + x - r], right = data[row + x + r];
+            if (isMax) {
+                if (!(yy <= y ? d >= left : d > left) || !(yy < y ? d >= right : d > right)) {
+                    return false;
+                }
+            } else {
+                if (!(yy <= y ? d <= left : d < left) || !(yy < y ? d <= right : d < right)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JFR events emitted by MUDDLEMetrics. This is the only class that depends on the jdk.jfr module, and it is only
+ * loaded by MUDDLEMetrics when metrics are enabled and the module is present, so the library still links on runtimes
+ * without it.
+ */
+final class MUDDLEEvents {
+    private static final EventType PHASE_TYPE = EventType.getEventType(PhaseEvent.class);
+    private static final EventType DILATION_TYPE = EventType.getEventType(DilationEvent.class);
+
+    private MUDDLEEvents() {
+    }
+
+    @Name("io.github.lukehutch.muddle.Phase")
+    @Label("MUDDLE Phase")
+    @Category("MUDDLE")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Samples")
+        long numSamples;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocatedBytes;
+    }
+
+    @Name("io.github.lukehutch.muddle.Dilation")
+    @Label("MUDDLE Dilation Round")
+    @Category("MUDDLE")
+    static class DilationEvent extends Event {
+        @Label("Radius")
+        int radius;
+
+        @Label("Live Extrema")
+        int numLiveExtrema;
+    }
+
+    /** Start a phase event, or return null if no recording has the event enabled. */
+    static Object beginPhase() {
+        if (!PHASE_TYPE.isEnabled()) {
+            return null;
+        }
+        PhaseEvent event = new PhaseEvent();
+        event.begin();
+        return event;
+    }
+
+    /** End and commit a phase event returned by beginPhase(). */
+    static void endPhase(Object phaseEvent, MUDDLEMetrics.Phase phase, long numSamples, long allocatedBytes) {
+        PhaseEvent event = (PhaseEvent) phaseEvent;
+        event.end();
+        if (event.shouldCommit()) {
+            event.phase = phase.name();
+            event.numSamples = numSamples;
+            event.allocatedBytes = allocatedBytes;
+            event.commit();
+        }
+    }
+
+    /** Emit a dilation round event, without allocating unless a recording has the event enabled. */
+    static void dilation(int radius, int numLiveExtrema) {
+        if (DILATION_TYPE.isEnabled()) {
+            DilationEvent event = new DilationEvent();
+            if (event.shouldCommit()) {
+                event.radius = radius;
+                event.numLiveExtrema = numLiveExtrema;
+                event.commit();
+            }
+        }
+    }
+}
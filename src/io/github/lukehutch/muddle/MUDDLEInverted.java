@@ -4,12 +4,18 @@ import java.util.Arrays;
 
 public class MUDDLEInverted {
 
-    final float[] data;
+    final Samples data;
     final int maxRadius;
     final int[] extent;
-
-    private static final float ONE_OVER_LOG2 = (float) (1.0 / Math.log(2));
-    private static final float SQRT2 = (float) Math.sqrt(2);
+    ExtentRangeIndex maxRangeIndex, minRangeIndex;
+
+    /** The algorithm used to compute the extent array. Both algorithms give identical results. */
+    public enum ExtentAlgorithm {
+        /** Probe outwards one radius at a time from each data point. O[n * maxRadius] in the worst case. */
+        RADIUS_PROBING,
+        /** Find the nearest dominating neighbour on each side of each data point with a monotonic stack. O[n]. */
+        NEAREST_DOMINATOR
+    }
 
     /**
      * Perform a MUDDLE decomposition on the input data. On exit, extent[t] gives the maximum dilation radius for each data point.
@@ -18,177 +24,90 @@ public class MUDDLEInverted {
      * && data[t] < data[t+1]).
      */
     public MUDDLEInverted(float[] data, int maxRadius) {
-        this.data = data;
-        this.extent = new int[data.length];
-        this.maxRadius = maxRadius;
-
-        for (int t = 0; t < data.length; t++) {
-            int r = 1;
-            for (int extremumType = 0; r <= maxRadius; r++) {
-                int t0 = t - r, t1 = t + r;
-                if (t0 < 0 || t1 >= data.length) {
-                    // Ran off end of data
-                    break;
-                }
-                float d = data[t], d0 = data[t0], d1 = data[t1];
-                // Find convexity type at radius r: 1 => local max; -1 => local min; 0 => neither
-                int convexityType = d >= d0 && d > d1 ? 1 : d <= d0 && d < d1 ? -1 : 0;
-                if (extremumType == 0) {
-                    // Fix extremum type after first dilation (when r == 1) --
-                    // a point can't be both a local maximum and a local minimum.
-                    extremumType = convexityType;
-                }
-                if (convexityType == 0 || extremumType != convexityType) {
-                    // Convexity type changed => extremum is not dominant at this radius
-                    break;
-                }
-            }
-            extent[t] = r - 1;
-        }
+        this(data, maxRadius, ExtentAlgorithm.RADIUS_PROBING);
     }
 
-    public void produceAltFracHist() {
-        float[][] altHist = new float[maxRadius + 1][2]; // TODO: make these ints if multiplying by 0.9999 doesn't work
-        int[] prevExtremumType = new int[maxRadius + 1];
-        int[] prevExtremumIdx = new int[maxRadius + 1];
-        for (int t = 0, tEnd = data.length - 1; t < tEnd; t++) {
-            // Optimization -- most data points are not extrema, even at r = 1
-            if (extent[t] > 0) {
-                float d = data[t], d1 = data[t + 1];
-                int extremumType = d > d1 ? 1 : d < d1 ? -1 : 0;
-                for (int r = 1; r <= extent[t]; r++) {
-                    if (prevExtremumType[r] != 0) {
-                        if (extremumType != prevExtremumType[r]) {
-                            // Previous extremum was of the opposite type, increase alteration frac
-                            altHist[r][0] += 1.0f; // numer
-                        }
-                    }
-                    altHist[r][1] += 1.0f; // denom
+    /**
+     * Perform a MUDDLE decomposition on the input data, using the specified algorithm to compute the extent array.
+     */
+    public MUDDLEInverted(float[] data, int maxRadius, ExtentAlgorithm algorithm) {
+        this(Samples.of(data), maxRadius, algorithm);
+    }
 
-                    prevExtremumType[r] = extremumType;
-                    prevExtremumIdx[r] = t;
-                }
-            }
-        }
-        smoothAltFracHist(altHist, maxRadius);
+    /**
+     * Perform a MUDDLE decomposition on samples of any type (e.g. double[], int[] or short[] samples, or a
+     * FloatBuffer or DoubleBuffer view), reading the samples in place.
+     */
+    public MUDDLEInverted(Samples data, int maxRadius) {
+        this(data, maxRadius, ExtentAlgorithm.RADIUS_PROBING);
     }
 
-    private static void smoothAltFracHist(float[][] altHist, int maxRadius) {
-        // Find alternation fraction for all radii with extent greater than or equal to a given radius
-        float[] altFracHist = new float[maxRadius + 1];
-        for (int r = 1; r <= maxRadius; r++) {
-            altFracHist[r] = altHist[r][1] == 0.0f ? 0.0f : altHist[r][0] / altHist[r][1];
-        }
+    /** Perform a MUDDLE decomposition on samples of any type, using the specified algorithm. */
+    public MUDDLEInverted(Samples data, int maxRadius, ExtentAlgorithm algorithm) {
+        this.data = data;
+        this.extent = new int[data.length()];
+        this.maxRadius = maxRadius;
 
-        // Perform trapezoidal integration on hist, using log x-axis, then find average value
-        // over interval [r, 2r] using the First Mean Value Theorem for Integrals:
-        // Mean = (F(2x) - F(x)) / (ln(2x) - ln(x)) = (F(2x) - F(x)) / ln(2)
-        float[] cumulLogHist = new float[altFracHist.length];
-        float log_rMinus1 = 0.0f;
-        for (int r = 2; r < altFracHist.length; r++) {
-            float log_r = (float) Math.log(r);
-            float trapArea = (log_r - log_rMinus1) * (altFracHist[r] + altFracHist[r - 1]) * 0.5f;
-            cumulLogHist[r] = cumulLogHist[r - 1] + trapArea;
-            log_rMinus1 = log_r;
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.DILATION);
+        switch (algorithm) {
+        case RADIUS_PROBING:
+            Extents.probe(data, maxRadius, extent, 0, data.length());
+            break;
+        case NEAREST_DOMINATOR:
+            Extents.nearestDominator(data, maxRadius, extent);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown algorithm: " + algorithm);
         }
-        float[] meanForHarmonicInterval = new float[altFracHist.length / 2];
-        float maxMean = 0.0f;
-        int maxMeanRadius = 0;
-        for (int r = 1; r < meanForHarmonicInterval.length; r++) {
-            // For radius r, signal period is 2r + 1
-            // For radius 2r, signal period is 2(2r) + 1 = 4r + 1.
-            // => If signal period increases by (2r / r) = r, period increases by (4r + 1)/(2r + 1) = (2r + 1/2)/(r +
-            // 1/2).
-            // But this is close enough to 2r.
-            float mean = (cumulLogHist[r * 2] - cumulLogHist[r]) * ONE_OVER_LOG2;
-            if (mean > maxMean) {
-                maxMean = mean;
-                maxMeanRadius = r;
-            }
-            // Radius at center of interval
-            float rc = r * SQRT2;
-            System.out.println(Math.log(r) + "\t" + altFracHist[r] + "\t" + Math.log(rc) + "\t" + mean);
-        }
-        // Halfway through the interval of width ln(2) in the log domain occurs at an offset of
-        // e^(ln(2)/2) = e^(ln(2^(1/2))) = sqrt(2) from the start of the interval in the linear domain.
-        int optimalRadius = (int) Math.round(maxMeanRadius * SQRT2);
-        float natPeriod = 2 * maxMeanRadius + 2; // N.B. would be more accurate if we used parabolic fit for
-                                                 // maxMeanRadius
-        System.out.println("Max mean radius: " + maxMeanRadius + "; approx natural period: " + natPeriod + "; optimal radius: " + optimalRadius);
+        MUDDLEMetrics.end(span, data.length());
     }
 
-    public void produceExtentHist() {
-        int[] numExtremaAtRadius = new int[maxRadius + 1];
-        for (int t = 0; t < data.length; t++) {
-            numExtremaAtRadius[extent[t]]++; // TODO: unused?
-        }
-        int[] prevExtremumType = new int[maxRadius + 1];
-        int[] prevExtremumIdx = new int[maxRadius + 1];
+    /** Wrap an extent array that has already been computed. */
+    MUDDLEInverted(float[] data, int maxRadius, int[] extent) {
+        this.data = Samples.of(data);
+        this.extent = extent;
+        this.maxRadius = maxRadius;
+    }
 
-        double binPow = 0.2;
-        int nBins = 4; // TODO: use 5 or 6
-        float[] binRatio = new float[nBins];
-        float[] binRatioInv = new float[nBins];
-        for (int i = 0; i < nBins; i++) {
-            double ratio = Math.pow(2, (i + 1) * binPow);
-            binRatio[i] = (float) ratio;
-            binRatioInv[i] = (float) (1.0 / ratio);
-        }
+    /**
+     * Estimate the natural period and optimal radius of the data from the alternation histogram of the extrema, with
+     * the extremum at each data point counted at every radius up to its extent. The alternation fraction at each
+     * radius is the number of extrema that follow an extremum of opposite type, divided by the number of extrema
+     * (see ScaleHistogram.alternationPerExtremumHist()), rather than by the number of adjacent pairs as in
+     * RadiusEstimator.
+     */
+    public RadiusEstimate produceAltFracHist() {
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.HISTOGRAM);
+        RadiusEstimate estimate = new RadiusEstimate(ScaleHistogram.of(this).alternationPerExtremumHist());
+        MUDDLEMetrics.end(span, data.length());
+        return estimate;
+    }
 
-        int[][] sepHist = new int[maxRadius + 1][nBins];
-        for (int t = 0, tEnd = data.length - 1; t < tEnd; t++) {
-            // Optimization -- most data points are not extrema, even at r = 1
-            if (extent[t] > 0) {
-                float d = data[t], d1 = data[t + 1];
-                int extremumType = d > d1 ? 1 : d < d1 ? -1 : 0;
-                for (int r = 1; r <= extent[t]; r++) {
-                    if (prevExtremumType[r] != 0 && extremumType == prevExtremumType[r]) {
-                        // Build hist of extremum separation at each scale
-                        int sep = t - prevExtremumIdx[r];
-                        if (sep <= maxRadius) {
-                            float sepRatio = (float) sep / (float) r;
-                            // Saves taking the log of sepRatio to find the bin:
-                            for (int i = 0; i < nBins; i++) {
-                                if (sepRatio < binRatio[i]) {
-                                    sepHist[r][i]++;
-                                    break;
-                                }
-                            }
-                        }
-                    }
-                    prevExtremumType[r] = extremumType;
-                    prevExtremumIdx[r] = t;
-                }
-            }
-        }
-        // for (int r = 1; r <= 100 /* maxRadius */; r++) {
-        // for (int j = 0; j < nBins; j++) {
-        // System.out.print((j == 0 ? "" : "\t") + sepHist[r][j]);
-        // }
-        // System.out.println();
-        // }
-        float[] resampledSepHist = new float[maxRadius + 1];
-        for (int i = 1; i < resampledSepHist.length; i++) {
-            // Accumulate linear interpolation of domain-scaled histogram for each bin
-            for (int j = 0; j < nBins; j++) {
-                float scaledIdx = i * binRatioInv[j];
-                int scaledIdxInt = (int) scaledIdx;
-                float weight = scaledIdx - scaledIdxInt;
-                if (scaledIdxInt < maxRadius) {
-                    resampledSepHist[i] += (1.0f - weight) * sepHist[scaledIdxInt][j] + weight * sepHist[scaledIdxInt + 1][j];
-                }
-            }
-            // System.out.println(resampledSepHist[i]);
-        }
-        float[] harmonicCombinedHist = new float[maxRadius / 2];
-        for (int i = 2; i < harmonicCombinedHist.length; i++) {
-            int ii = 2 * i - 2;
-            if (ii > 1 && ii < maxRadius - 1) {
-                harmonicCombinedHist[i] =
-                    resampledSepHist[i] + 0.25f * resampledSepHist[ii - 1] + 0.5f * resampledSepHist[ii] + 0.25f * resampledSepHist[ii + 1];
-            }
-            System.out.println(harmonicCombinedHist[i]);
+    /**
+     * Returns the histogram of the separations of adjacent same-type extrema, resampled onto a common separation
+     * axis and combined with its second harmonic (see ScaleHistogram.harmonicSeparationHist()).
+     */
+    public float[] produceExtentHist() {
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.HISTOGRAM);
+        float[] harmonicCombinedHist = ScaleHistogram.of(this).harmonicSeparationHist();
+        MUDDLEMetrics.end(span, data.length());
+        return harmonicCombinedHist;
+    }
+
+    /**
+     * Build range-maximum indices over the extents of local maxima and of local minima, so that
+     * findMostDominantExtremumBetween runs in O[log data.length] rather than O[t1 - t0].
+     */
+    public void buildRangeIndex() {
+        int[] maxExtent = new int[data.length()], minExtent = new int[data.length()];
+        for (int t = 0; t < data.length(); t++) {
+            // Points of the wrong type can never be picked
+            boolean hasNext = t + 1 < data.length();
+            maxExtent[t] = hasNext && data.greater(t, t + 1) ? extent[t] : -1;
+            minExtent[t] = hasNext && data.greater(t + 1, t) ? extent[t] : -1;
         }
+        maxRangeIndex = new ExtentRangeIndex(maxExtent);
+        minRangeIndex = new ExtentRangeIndex(minExtent);
     }
 
     /**
@@ -207,12 +126,20 @@ public class MUDDLEInverted {
         int searchRadius = (t1 - t0 - 1) / 2;
         int tCenter = (t0 + t1) / 2;
         int tMaxExtent = tCenter, maxExtent = extent[tMaxExtent];
+        ExtentRangeIndex rangeIndex = maxType ? maxRangeIndex : minRangeIndex;
+        if (rangeIndex != null) {
+            // The center point is a candidate regardless of its type; other points must match the extremum type
+            MUDDLEMetrics.recordGapSearch(0);
+            int t = rangeIndex.argMaxNearest(t0 + 1, t1 - 1, tCenter);
+            return rangeIndex.get(t) > maxExtent ? t : tMaxExtent;
+        }
+        MUDDLEMetrics.recordGapSearch(t1 - t0 - 1);
         for (int r = 1; r <= searchRadius; r++) {
             int tLeft = tCenter - r, tRight = tCenter + r;
             // In case there's an odd number of indices between idx0 and idx1, don't pick idx0
             if (tLeft > t0) {
                 // Check extremum type matches
-                if ((maxType && data[tLeft] > data[tLeft + 1]) || (!maxType && data[tLeft] < data[tLeft + 1])) {
+                if (maxType ? data.greater(tLeft, tLeft + 1) : data.greater(tLeft + 1, tLeft)) {
                     int r0 = extent[tLeft];
                     if (r0 > maxExtent) {
                         // Found a more dominant extremum
@@ -222,7 +149,7 @@ public class MUDDLEInverted {
                 }
             }
             // Check extremum type matches
-            if ((maxType && data[tRight] > data[tRight + 1]) || (!maxType && data[tRight] < data[tRight + 1])) {
+            if (maxType ? data.greater(tRight, tRight + 1) : data.greater(tRight + 1, tRight)) {
                 int r1 = extent[tRight];
                 if (r1 > maxExtent) {
                     // Found a more dominant extremum
@@ -251,9 +178,11 @@ public class MUDDLEInverted {
         // + (extremumType == -1 ? data[i] : 0.0f));
         // }
 
-        // muddle.produceAltFracHist();
+        // System.out.println(muddle.produceAltFracHist());
 
-        muddle.produceExtentHist();
+        for (float f : muddle.produceExtentHist()) {
+            System.out.println(f);
+        }
 
     }
 }
\ No newline at end of file
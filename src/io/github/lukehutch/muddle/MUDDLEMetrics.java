@@ -0,0 +1,297 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters and timers for the engines, so that a slow run can be attributed to the phase it spent its
+ * time in (loading, dilation, merging, span-gap filling or histogram building), the number of dilation rounds and how
+ * quickly the live extrema decayed, the length of the gap scans in findMostDominantExtremumBetween, or allocation.
+ * 
+ * Metrics are disabled by default (enable with setEnabled(true), or with -Dmuddle.metrics=true). When disabled, each
+ * instrumentation point costs one volatile read. When enabled, counters are LongAdders, so that threads of a parallel
+ * decomposition do not contend, and each phase (and each dilation round) is also emitted as a JFR event, which is
+ * recorded if a JFR recording with the event enabled is running. Allocated bytes are measured per phase on the
+ * calling thread (so exclude allocations on ForkJoinPool worker threads), and are only available on HotSpot.
+ * 
+ * JFR events (MUDDLEEvents) and allocation counting (ThreadAllocation) are in separate classes, which are only loaded
+ * when metrics are enabled and their modules (jdk.jfr, and java.management with jdk.management) are present, so the
+ * library links and runs on runtimes without those modules, with events or allocation counts quietly disabled.
+ * 
+ * Monitoring can scrape the metrics with snapshot(), which is safe to call while decompositions are running.
+ */
+public final class MUDDLEMetrics {
+    /** The phases that are timed. */
+    public enum Phase {
+        LOAD, DILATION, MERGE, SPAN_GAPS, HISTOGRAM
+    }
+
+    /** Dilation rounds at radii >= this are all counted at this radius. */
+    static final int MAX_TRACKED_RADIUS = 1024;
+
+    private static volatile boolean enabled = Boolean.getBoolean("muddle.metrics");
+
+    private static final EnumMap<Phase, LongAdder> phaseNanos = newPhaseAdders();
+    private static final EnumMap<Phase, LongAdder> phaseCount = newPhaseAdders();
+    private static final EnumMap<Phase, LongAdder> phaseSamples = newPhaseAdders();
+    private static final EnumMap<Phase, LongAdder> phaseAllocatedBytes = newPhaseAdders();
+    private static final LongAdder dilationRounds = new LongAdder();
+    /** Indexed by radius. Parallel dilations update the same radii at the same time, so each radius has an adder. */
+    private static final LongAdder[] liveExtremaAtRadius = newAdders(MAX_TRACKED_RADIUS + 1);
+    private static final LongAdder gapSearches = new LongAdder();
+    private static final LongAdder gapScanLength = new LongAdder();
+
+    private MUDDLEMetrics() {
+    }
+
+    /** Which optional modules are present, looked up on first use. */
+    private static final class Support {
+        static final boolean jfr = isPresent("jdk.jfr.Event");
+        static final boolean allocation = isPresent("com.sun.management.ThreadMXBean") && threadAllocationSupported();
+
+        private static boolean isPresent(String className) {
+            try {
+                Class.forName(className, false, MUDDLEMetrics.class.getClassLoader());
+                return true;
+            } catch (ClassNotFoundException | LinkageError e) {
+                return false;
+            }
+        }
+
+        private static boolean threadAllocationSupported() {
+            try {
+                return ThreadAllocation.isSupported();
+            } catch (LinkageError | RuntimeException e) {
+                return false;
+            }
+        }
+    }
+
+    private static LongAdder[] newAdders(int n) {
+        LongAdder[] adders = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static EnumMap<Phase, LongAdder> newPhaseAdders() {
+        EnumMap<Phase, LongAdder> adders = new EnumMap<>(Phase.class);
+        for (Phase phase : Phase.values()) {
+            adders.put(phase, new LongAdder());
+        }
+        return adders;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Switch metrics collection on or off. Counts accumulated so far are kept (see reset()). */
+    public static void setEnabled(boolean enabled) {
+        MUDDLEMetrics.enabled = enabled;
+    }
+
+    /** Zero all counters. */
+    public static void reset() {
+        for (Phase phase : Phase.values()) {
+            phaseNanos.get(phase).reset();
+            phaseCount.get(phase).reset();
+            phaseSamples.get(phase).reset();
+            phaseAllocatedBytes.get(phase).reset();
+        }
+        dilationRounds.reset();
+        for (LongAdder adder : liveExtremaAtRadius) {
+            adder.reset();
+        }
+        gapSearches.reset();
+        gapScanLength.reset();
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** A timed phase, started by begin() and ended by end(). */
+    static final class Span {
+        final Phase phase;
+        final long startNanos, startAllocatedBytes;
+        /** The MUDDLEEvents.PhaseEvent, or null if JFR is not present or the event is not being recorded. */
+        final Object event;
+
+        Span(Phase phase) {
+            this.phase = phase;
+            event = Support.jfr ? MUDDLEEvents.beginPhase() : null;
+            startAllocatedBytes = allocatedBytes();
+            startNanos = System.nanoTime();
+        }
+    }
+
+    /** Start timing a phase on the calling thread. Returns null if metrics are disabled. */
+    static Span begin(Phase phase) {
+        return enabled ? new Span(phase) : null;
+    }
+
+    /** End a phase started by begin() (span may be null), which processed numSamples samples. */
+    static void end(Span span, long numSamples) {
+        if (span == null) {
+            return;
+        }
+        long nanos = System.nanoTime() - span.startNanos;
+        long allocated = allocatedBytes() - span.startAllocatedBytes;
+        Phase phase = span.phase;
+        phaseNanos.get(phase).add(nanos);
+        phaseCount.get(phase).increment();
+        phaseSamples.get(phase).add(numSamples);
+        phaseAllocatedBytes.get(phase).add(allocated);
+        if (span.event != null) {
+            MUDDLEEvents.endPhase(span.event, phase, numSamples, allocated);
+        }
+    }
+
+    /** Record the number of extrema that were still live after a dilation to the given radius. */
+    static void recordDilation(int radius, int numLiveExtrema) {
+        if (!enabled) {
+            return;
+        }
+        dilationRounds.increment();
+        liveExtremaAtRadius[Math.min(radius, MAX_TRACKED_RADIUS)].add(numLiveExtrema);
+        if (Support.jfr) {
+            MUDDLEEvents.dilation(radius, numLiveExtrema);
+        }
+    }
+
+    /** Record a search for the most dominant extremum in a gap, which scanned scanLength extents. */
+    static void recordGapSearch(int scanLength) {
+        if (!enabled) {
+            return;
+        }
+        gapSearches.increment();
+        gapScanLength.add(scanLength);
+    }
+
+    /** The number of bytes allocated by the calling thread so far, or 0 if not supported. */
+    static long allocatedBytes() {
+        return Support.allocation ? ThreadAllocation.allocatedBytes() : 0;
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /** Take a snapshot of the counters. Counters that are updated while the snapshot is taken may be out of step. */
+    public static Snapshot snapshot() {
+        return new Snapshot();
+    }
+
+    /** An immutable snapshot of the counters. */
+    public static final class Snapshot {
+        private final EnumMap<Phase, long[]> phases = new EnumMap<>(Phase.class);
+        private final long dilationRounds;
+        private final long[] liveExtremaAtRadius;
+        private final long gapSearches, gapScanLength;
+
+        private Snapshot() {
+            for (Phase phase : Phase.values()) {
+                phases.put(phase, new long[] { MUDDLEMetrics.phaseCount.get(phase).sum(),
+                        MUDDLEMetrics.phaseNanos.get(phase).sum(), MUDDLEMetrics.phaseSamples.get(phase).sum(),
+                        MUDDLEMetrics.phaseAllocatedBytes.get(phase).sum() });
+            }
+            this.dilationRounds = MUDDLEMetrics.dilationRounds.sum();
+            long[] liveExtremaAtRadius = new long[MAX_TRACKED_RADIUS + 1];
+            int maxRadius = 0;
+            for (int r = 1; r <= MAX_TRACKED_RADIUS; r++) {
+                liveExtremaAtRadius[r] = MUDDLEMetrics.liveExtremaAtRadius[r].sum();
+                if (liveExtremaAtRadius[r] != 0) {
+                    maxRadius = r;
+                }
+            }
+            this.liveExtremaAtRadius = Arrays.copyOf(liveExtremaAtRadius, maxRadius + 1);
+            this.gapSearches = MUDDLEMetrics.gapSearches.sum();
+            this.gapScanLength = MUDDLEMetrics.gapScanLength.sum();
+        }
+
+        /** The number of times the phase ran. */
+        public long phaseCount(Phase phase) {
+            return phases.get(phase)[0];
+        }
+
+        /** The total time spent in the phase, in nanoseconds. */
+        public long phaseNanos(Phase phase) {
+            return phases.get(phase)[1];
+        }
+
+        /** The total number of samples processed by the phase. */
+        public long phaseSamples(Phase phase) {
+            return phases.get(phase)[2];
+        }
+
+        /** The total number of bytes allocated by the phase on the calling thread (0 if not supported by the JVM). */
+        public long phaseAllocatedBytes(Phase phase) {
+            return phases.get(phase)[3];
+        }
+
+        /** The total number of dilation rounds (calls to Extrema.dilate() and its variants). */
+        public long dilationRounds() {
+            return dilationRounds;
+        }
+
+        /**
+         * Returns live[r], the total number of extrema that were still live after dilating to radius r (summed over
+         * all dilations, so divide by the live count at r = 1 for the decay profile), for 1 <= r <= the largest
+         * radius reached (radii >= MAX_TRACKED_RADIUS are counted at MAX_TRACKED_RADIUS).
+         */
+        public long[] liveExtremaAtRadius() {
+            return liveExtremaAtRadius.clone();
+        }
+
+        /** The number of searches for the most dominant extremum in a gap. */
+        public long gapSearches() {
+            return gapSearches;
+        }
+
+        /** The total number of extents scanned by gap searches (a range-indexed search counts as 0). */
+        public long gapScanLength() {
+            return gapScanLength;
+        }
+
+        /** The metrics as a flat map from name to value, e.g. "dilation.nanos" or "liveExtrema.r3", for scraping. */
+        public Map<String, Long> toMap() {
+            Map<String, Long> map = new LinkedHashMap<>();
+            for (Phase phase : Phase.values()) {
+                String prefix = phase.name().toLowerCase();
+                map.put(prefix + ".count", phaseCount(phase));
+                map.put(prefix + ".nanos", phaseNanos(phase));
+                map.put(prefix + ".samples", phaseSamples(phase));
+                map.put(prefix + ".allocatedBytes", phaseAllocatedBytes(phase));
+            }
+            map.put("dilationRounds", dilationRounds);
+            for (int r = 1; r < liveExtremaAtRadius.length; r++) {
+                map.put("liveExtrema.r" + r, liveExtremaAtRadius[r]);
+            }
+            map.put("gapSearches", gapSearches);
+            map.put("gapScanLength", gapScanLength);
+            return map;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder buf = new StringBuilder();
+            for (Phase phase : Phase.values()) {
+                buf.append(phase).append(": ").append(phaseCount(phase)).append(" runs, ")
+                        .append(phaseNanos(phase) / 1_000_000).append(" ms, ").append(phaseSamples(phase))
+                        .append(" samples, ").append(phaseAllocatedBytes(phase)).append(" bytes allocated\n");
+            }
+            buf.append("Dilation rounds: ").append(dilationRounds).append("\nLive extrema at radius: ")
+                    .append(Arrays.toString(liveExtremaAtRadius)).append("\nGap searches: ").append(gapSearches)
+                    .append(", scan length: ").append(gapScanLength);
+            return buf.toString();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Push-based streaming version of the MUDDLEInverted decomposition, for unbounded sample streams.
+ *
+ * Samples are pushed in chunks of any size. The extent of each data point is finalized once the point is maxRadius
+ * samples behind the head of the stream, since no later sample can change it, and is then passed to the listener
+ * along with its extremum type. The extents are identical to those of MUDDLEInverted(data, maxRadius) computed over
+ * the whole stream, once close() has been called to finalize the last maxRadius points.
+ *
+ * Only O(maxRadius) samples are retained. The nearest dominating neighbour on each side of every point is found with
+ * a pair of monotonic stacks (one for maxima, one for minima), so the amortized cost per sample is constant,
+ * independent of maxRadius.
+ */
+public class MUDDLEStream {
+
+    /** Receives finalized extents, in increasing order of t. */
+    public interface ExtentListener {
+        /**
+         * Called once for each data point, when its extent has been finalized. extremumType is 1 for a local
+         * maximum, -1 for a local minimum, or 0 if extent == 0.
+         */
+        void extentFinalized(long t, float value, int extent, int extremumType);
+    }
+
+    /** The largest supported maxRadius. */
+    public static final int MAX_RADIUS = (1 << 30) - 2;
+
+    private final int maxRadius;
+    private final ExtentListener listener;
+
+    // Ring buffers, indexed by (t & mask), holding the samples that may still be referenced
+    private final int mask;
+    private final float[] ring;
+
+    // Distance from each pending point to the nearest dominating point on the left or right, for the max and min
+    // type, or (maxRadius + 1) if there is no dominating point within maxRadius samples
+    private final int[] leftDistMax, rightDistMax, leftDistMin, rightDistMin;
+
+    // Monotonic stacks of sample indices (as deques, so that entries that fall out of range can be dropped from the
+    // bottom). The max stack has strictly decreasing values from bottom to top, the min stack strictly increasing.
+    private final long[] maxStack, minStack;
+    private int maxStackBottom, maxStackTop, minStackBottom, minStackTop;
+
+    /**
+     * The index of the last NaN sample, or -1 if there has been none. Every comparison with NaN is false, so a NaN
+     * sample dominates every point on either side of it, as in MUDDLEInverted. NaN samples are never pushed onto the
+     * stacks (which rely on the comparisons being a total order), but pop all stack entries, and then act as the
+     * nearest dominating point on the left until the next sample is pushed.
+     */
+    private long lastNaN = -1;
+
+    /** The number of samples pushed so far. */
+    private long head;
+
+    /** The number of points whose extent has been finalized so far. */
+    private long numFinalized;
+
+    private boolean closed;
+
+    public MUDDLEStream(int maxRadius, ExtentListener listener) {
+        // The ring capacity is the next power of two >= maxRadius + 2, which must fit in an int
+        if (maxRadius < 0 || maxRadius > MAX_RADIUS) {
+            throw new IllegalArgumentException("maxRadius must be between 0 and " + MAX_RADIUS + ", got " + maxRadius);
+        }
+        this.maxRadius = maxRadius;
+        this.listener = listener;
+        // Need to hold the maxRadius + 1 most recent samples, plus the incoming sample
+        int capacity = Integer.highestOneBit(maxRadius + 2);
+        if (capacity < maxRadius + 2) {
+            capacity <<= 1;
+        }
+        this.mask = capacity - 1;
+        this.ring = new float[capacity];
+        this.leftDistMax = new int[capacity];
+        this.rightDistMax = new int[capacity];
+        this.leftDistMin = new int[capacity];
+        this.rightDistMin = new int[capacity];
+        this.maxStack = new long[capacity];
+        this.minStack = new long[capacity];
+    }
+
+    public int getMaxRadius() {
+        return maxRadius;
+    }
+
+    /** The number of samples pushed so far. */
+    public long getNumSamples() {
+        return head;
+    }
+
+    /** The number of points whose extent has been passed to the listener so far. */
+    public long getNumFinalized() {
+        return numFinalized;
+    }
+
+    /** Push a chunk of samples. */
+    public void push(float[] samples, int off, int len) {
+        for (int i = off, iEnd = off + len; i < iEnd; i++) {
+            push(samples[i]);
+        }
+    }
+
+    /** Push a chunk of samples. */
+    public void push(float[] samples) {
+        push(samples, 0, samples.length);
+    }
+
+    /** Push the remaining samples in the buffer (e.g. a memory-mapped window of a file), advancing its position. */
+    public void push(FloatBuffer samples) {
+        while (samples.hasRemaining()) {
+            push(samples.get());
+        }
+    }
+
+    /** Push a single sample. */
+    public void push(float sample) {
+        if (closed) {
+            throw new IllegalStateException("Stream has been closed");
+        }
+        long h = head;
+        int hSlot = (int) (h & mask);
+        ring[hSlot] = sample;
+        int noDominator = maxRadius + 1;
+        rightDistMax[hSlot] = noDominator;
+        rightDistMin[hSlot] = noDominator;
+
+        // Drop stack entries that are too far away to dominate any pending point
+        long oldestInRange = h - maxRadius;
+        while (maxStackBottom != maxStackTop && maxStack[maxStackBottom & mask] < oldestInRange) {
+            maxStackBottom++;
+        }
+        while (minStackBottom != minStackTop && minStack[minStackBottom & mask] < oldestInRange) {
+            minStackBottom++;
+        }
+
+        if (sample != sample) {
+            // NaN dominates all pending points, and has extent 0
+            while (maxStackBottom != maxStackTop) {
+                long top = maxStack[(--maxStackTop) & mask];
+                rightDistMax[(int) (top & mask)] = (int) (h - top);
+            }
+            while (minStackBottom != minStackTop) {
+                long top = minStack[(--minStackTop) & mask];
+                rightDistMin[(int) (top & mask)] = (int) (h - top);
+            }
+            leftDistMax[hSlot] = 1;
+            leftDistMin[hSlot] = 1;
+            lastNaN = h;
+        } else {
+            pushToStacks(h, hSlot, sample);
+        }
+
+        head = h + 1;
+
+        // The point maxRadius samples behind the head can no longer change
+        if (h >= maxRadius) {
+            finalizePoint(h - maxRadius);
+        }
+    }
+
+    /** Pop the stack entries dominated on the right by sample h (which is not NaN), then push it onto both stacks. */
+    private void pushToStacks(long h, int hSlot, float sample) {
+        // With no dominating point on the stack, the nearest dominating point on the left is the last NaN, if any
+        int noDominator = (int) Math.min(maxRadius + 1, lastNaN >= 0 ? h - lastNaN : Long.MAX_VALUE);
+
+        // For a local max, a point on the right dominates if it is >=, and a point on the left dominates if it is >
+        while (maxStackBottom != maxStackTop) {
+            long top = maxStack[(maxStackTop - 1) & mask];
+            if (ring[(int) (top & mask)] > sample) {
+                break;
+            }
+            rightDistMax[(int) (top & mask)] = (int) (h - top);
+            maxStackTop--;
+        }
+        leftDistMax[hSlot] = maxStackBottom == maxStackTop ? noDominator
+                : (int) (h - maxStack[(maxStackTop - 1) & mask]);
+        maxStack[maxStackTop++ & mask] = h;
+
+        // For a local min, a point on the right dominates if it is <=, and a point on the left dominates if it is <
+        while (minStackBottom != minStackTop) {
+            long top = minStack[(minStackTop - 1) & mask];
+            if (ring[(int) (top & mask)] < sample) {
+                break;
+            }
+            rightDistMin[(int) (top & mask)] = (int) (h - top);
+            minStackTop--;
+        }
+        leftDistMin[hSlot] = minStackBottom == minStackTop ? noDominator
+                : (int) (h - minStack[(minStackTop - 1) & mask]);
+        minStack[minStackTop++ & mask] = h;
+    }
+
+    /**
+     * Signal the end of the stream, finalizing the extents of the last maxRadius points (which are limited by the
+     * end of the data).
+     */
+    public void close() {
+        if (!closed) {
+            closed = true;
+            for (long t = numFinalized; t < head; t++) {
+                finalizePoint(t);
+            }
+        }
+    }
+
+    private void finalizePoint(long t) {
+        int slot = (int) (t & mask);
+        // Extent is limited by the distance to the nearest dominating point, and by the ends of the data
+        // (the end is only known once the stream has been closed)
+        long boundaryLimit = Math.min(t + 1, closed ? head - t : maxRadius + 1);
+        int limit = (int) Math.min(boundaryLimit, maxRadius + 1);
+        int extentMax = Math.min(limit, Math.min(leftDistMax[slot], rightDistMax[slot])) - 1;
+        int extentMin = Math.min(limit, Math.min(leftDistMin[slot], rightDistMin[slot])) - 1;
+        // A point can't be both a local maximum and a local minimum at radius 1, so at most one of these is non-zero
+        int extent, extremumType;
+        if (extentMax > 0) {
+            extent = extentMax;
+            extremumType = 1;
+        } else if (extentMin > 0) {
+            extent = extentMin;
+            extremumType = -1;
+        } else {
+            extent = 0;
+            extremumType = 0;
+        }
+        numFinalized = t + 1;
+        listener.extentFinalized(t, ring[slot], extent, extremumType);
+    }
+}
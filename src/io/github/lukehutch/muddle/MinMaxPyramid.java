@@ -0,0 +1,231 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.util.Arrays;
+
+/**
+ * Coarse-to-fine mode for large radii, where dilating from radius 1 (or probing every data point) spends most of its
+ * time confirming extrema that are dominated long before the requested radius.
+ * 
+ * The data is decimated into a pyramid of blocks of 2^k samples, each storing the data index of its maximum and of
+ * its minimum (the rightmost, in case of ties), in O[data.length] time and about 2 * data.length ints. A query at
+ * radius r then works in two phases:
+ * 
+ * 1. Candidates: any two points in a block of at most (r + 1) samples are within r samples of each other, so at most
+ * one local max per block can survive to radius r -- the block's rightmost maximum (since a local max is dominated
+ * by an equal value on its right). The candidates are read from the pyramid level with the largest such blocks, which
+ * has O[data.length / r] blocks.
+ * 
+ * 2. Refinement: each candidate's extent is computed exactly at full resolution, by finding its nearest dominating
+ * point on each side with a descent through the pyramid in O[log data.length].
+ * 
+ * So a query takes O[(data.length / r) log data.length] time rather than O[data.length log r] (for Extrema.dilate())
+ * or O[data.length] (for the extent kernels), and gives exactly the same results. The data must not contain NaN.
+ */
+public class MinMaxPyramid {
+    private final float[] data;
+    /** argMax[k][i] and argMin[k][i] are the data indices of the max and min of block i of 2^k samples (k >= 1). */
+    private final int[][] argMax, argMin;
+
+    public MinMaxPyramid(float[] data) {
+        for (float d : data) {
+            if (Float.isNaN(d)) {
+                throw new IllegalArgumentException("data must not contain NaN");
+            }
+        }
+        this.data = data;
+        int numLevels = 1;
+        while ((1L << (numLevels - 1)) < data.length) {
+            numLevels++;
+        }
+        argMax = new int[numLevels][];
+        argMin = new int[numLevels][];
+        for (int k = 1; k < numLevels; k++) {
+            int numBlocks = (int) ((data.length + (1L << k) - 1) >> k);
+            argMax[k] = new int[numBlocks];
+            argMin[k] = new int[numBlocks];
+            for (int i = 0; i < numBlocks; i++) {
+                int left = 2 * i, right = 2 * i + 1;
+                int numChildren = k == 1 ? data.length : argMax[k - 1].length;
+                int leftMax = k == 1 ? left : argMax[k - 1][left], leftMin = k == 1 ? left : argMin[k - 1][left];
+                if (right < numChildren) {
+                    int rightMax = k == 1 ? right : argMax[k - 1][right];
+                    int rightMin = k == 1 ? right : argMin[k - 1][right];
+                    // Ties are broken to the right
+                    argMax[k][i] = data[rightMax] >= data[leftMax] ? rightMax : leftMax;
+                    argMin[k][i] = data[rightMin] <= data[leftMin] ? rightMin : leftMin;
+                } else {
+                    argMax[k][i] = leftMax;
+                    argMin[k][i] = leftMin;
+                }
+            }
+        }
+    }
+
+    public int length() {
+        return data.length;
+    }
+
+    /**
+     * Returns the same result as MUDDLE.findPeaks(data, radius, false): an int result[2][], with the data indices of
+     * the local minima that survive radius dilations in result[0], and of the local maxima in result[1].
+     */
+    public int[][] findPeaks(int radius) {
+        if (radius < 0) {
+            throw new IllegalArgumentException("radius must be non-negative");
+        }
+        return new int[][] { findSurvivors(/* isMax = */false, radius, /* limitByEnds = */false, radius),
+                findSurvivors(/* isMax = */true, radius, /* limitByEnds = */false, radius) };
+    }
+
+    /**
+     * Returns an int result[2][], with the data indices of the local minima with MUDDLEInverted(data, maxRadius)
+     * extent >= scale in result[0], and of the local maxima in result[1] (the same as FusedExtents.ofInverted(data,
+     * maxRadius).findExtrema(scale)). Requires scale >= 1.
+     */
+    public int[][] findExtrema(int scale, int maxRadius) {
+        if (scale < 1) {
+            throw new IllegalArgumentException("scale must be at least 1");
+        }
+        if (scale > maxRadius) {
+            return new int[][] { new int[0], new int[0] };
+        }
+        return new int[][] { findSurvivors(/* isMax = */false, scale, /* limitByEnds = */true, maxRadius),
+                findSurvivors(/* isMax = */true, scale, /* limitByEnds = */true, maxRadius) };
+    }
+
+    /**
+     * The exact extent of data point t as a local max (or min) after maxRadius dilations (i.e. the extent that
+     * Extrema.dilate() gives). O[log data.length].
+     */
+    public int dilationExtent(int t, boolean isMax, int maxRadius) {
+        return extent(t, isMax, maxRadius, /* limitByEnds = */false);
+    }
+
+    /** The exact extent of data point t in MUDDLEInverted(data, maxRadius). O[log data.length]. */
+    public int invertedExtent(int t, int maxRadius) {
+        if (t + 1 >= data.length) {
+            return 0;
+        }
+        // The extremum type is fixed at radius 1
+        boolean isMax = data[t] > data[t + 1];
+        return extent(t, isMax, maxRadius, /* limitByEnds = */true);
+    }
+
+    /**
+     * The data indices, in increasing order, of the extrema of one type with extent >= radius, where extents are
+     * capped at maxRadius and optionally limited by the distance to the ends of the data.
+     */
+    private int[] findSurvivors(boolean isMax, int radius, boolean limitByEnds, int maxRadius) {
+        int n = data.length;
+        if (radius == 0) {
+            // At radius 0, all data points are extrema
+            int[] all = new int[n];
+            for (int t = 0; t < n; t++) {
+                all[t] = t;
+            }
+            return all;
+        }
+        // Use the largest blocks that hold at most radius + 1 samples, so at most one extremum per block survives
+        int k = Math.min(31 - Integer.numberOfLeadingZeros(radius + 1), argMax.length - 1);
+        int numBlocks = k == 0 ? n : argMax[k].length;
+        int[] survivors = new int[Math.min(numBlocks, 16)];
+        int numSurvivors = 0;
+        for (int i = 0; i < numBlocks; i++) {
+            int t = k == 0 ? i : (isMax ? argMax : argMin)[k][i];
+            if (extent(t, isMax, Math.min(radius, maxRadius), limitByEnds) >= radius) {
+                if (numSurvivors == survivors.length) {
+                    survivors = Arrays.copyOf(survivors, numSurvivors * 2);
+                }
+                survivors[numSurvivors++] = t;
+            }
+        }
+        return Arrays.copyOf(survivors, numSurvivors);
+    }
+
+    /** The extent of t, capped at maxRadius, and optionally limited by the ends of the data. */
+    private int extent(int t, boolean isMax, int maxRadius, boolean limitByEnds) {
+        int n = data.length;
+        int cap = limitByEnds ? Math.min(maxRadius, Math.min(t, n - 1 - t)) : maxRadius;
+        if (cap <= 0) {
+            return Math.max(cap, 0);
+        }
+        // A local max is dominated by a larger point on the left, or by an equal or larger point on the right
+        // (and vice versa for a local min). Only dominating points within cap + 1 samples can limit the extent.
+        int left = nearestDominator(t, isMax, /* rightward = */false, cap + 1);
+        int right = nearestDominator(t, isMax, /* rightward = */true, cap + 1);
+        return Math.min(Math.min(left, right), cap + 1) - 1;
+    }
+
+    /**
+     * The distance from t to the nearest point on one side of t that dominates it (strictly, on the left), if within
+     * maxDist, otherwise a distance greater than maxDist.
+     */
+    private int nearestDominator(int t, boolean isMax, boolean rightward, int maxDist) {
+        float d = data[t];
+        boolean strict = !rightward;
+        // Scan outwards from t through the largest aligned blocks that fit, stopping at the first block that contains
+        // a dominating point, then descend into that block to find the dominating point nearest to t
+        long lo = rightward ? t + 1 : Math.max(0, t - maxDist);
+        long hi = rightward ? Math.min(data.length - 1L, (long) t + maxDist) : t - 1;
+        if (rightward) {
+            for (long a = lo; a <= hi;) {
+                int k = alignedBlockLevel(a, hi - a + 1);
+                if (dominates(blockExtreme(k, (int) (a >> k), isMax), d, isMax, strict)) {
+                    return descend(k, (int) (a >> k), d, isMax, strict, /* preferLeft = */true) - t;
+                }
+                a += 1L << k;
+            }
+        } else {
+            for (long b = hi; b >= lo;) {
+                int k = alignedBlockLevel(b + 1, b - lo + 1);
+                if (dominates(blockExtreme(k, (int) (b >> k), isMax), d, isMax, strict)) {
+                    return t - descend(k, (int) (b >> k), d, isMax, strict, /* preferLeft = */false);
+                }
+                b -= 1L << k;
+            }
+        }
+        return maxDist + 1;
+    }
+
+    /**
+     * The level of the largest block of at most len samples that is aligned at boundary a (i.e. that starts at a, or
+     * that ends just before a).
+     */
+    private int alignedBlockLevel(long a, long len) {
+        int k = 0;
+        while (k + 1 < argMax.length && (a & ((1L << (k + 1)) - 1)) == 0 && (1L << (k + 1)) <= len) {
+            k++;
+        }
+        return k;
+    }
+
+    /** The max (or min) value in block i at level k (level 0 is the data). */
+    private float blockExtreme(int k, int i, boolean isMax) {
+        return data[k == 0 ? i : (isMax ? argMax : argMin)[k][i]];
+    }
+
+    private static boolean dominates(float v, float d, boolean isMax, boolean strict) {
+        return isMax ? (strict ? v > d : v >= d) : (strict ? v < d : v <= d);
+    }
+
+    /**
+     * Find the leftmost (or rightmost) data point that dominates d within block i at level k, which must contain
+     * one.
+     */
+    private int descend(int k, int i, float d, boolean isMax, boolean strict, boolean preferLeft) {
+        for (; k > 0; k--) {
+            int first = preferLeft ? 2 * i : 2 * i + 1, second = preferLeft ? 2 * i + 1 : 2 * i;
+            int numChildren = k == 1 ? data.length : argMax[k - 1].length;
+            i = first < numChildren && dominates(blockExtreme(k - 1, first, isMax), d, isMax, strict) ? first
+                    : second;
+        }
+        return i;
+    }
+}
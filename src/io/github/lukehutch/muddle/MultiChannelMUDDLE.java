@@ -0,0 +1,118 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Batch decomposition of all channels of a multi-channel recording (e.g. all rows of a .mat file, as loaded by
+ * Utils.loadMatChannels), with the channels decomposed concurrently on a shared thread pool.
+ *
+ * Channels are stored as one contiguous float[] per channel, rather than as a single float[] holding all channels,
+ * so a recording is not limited to 2^31 samples in total, and each channel can be passed to the extent kernel as is.
+ *
+ * Scratch buffers are pooled within each call to decompose(), so at most one set per concurrently running channel is
+ * allocated, and they are reused across channels. They are released when the call returns, so a large recording does
+ * not pin its scratch buffers to the pool's worker threads.
+ */
+public class MultiChannelMUDDLE {
+    private final ForkJoinPool pool;
+
+    /** The result of decomposing one channel. */
+    public static class ChannelResult {
+        /** The MUDDLEInverted extent of each data point in the channel. */
+        public final int[] extent;
+        /** The data indices of the local minima and maxima with extent >= the requested scale. */
+        public final int[] minIdxs, maxIdxs;
+
+        ChannelResult(int[] extent, int[] minIdxs, int[] maxIdxs) {
+            this.extent = extent;
+            this.minIdxs = minIdxs;
+            this.maxIdxs = maxIdxs;
+        }
+    }
+
+    public MultiChannelMUDDLE(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /** Load all channels of a .mat file and decompose them. */
+    public ChannelResult[] decompose(String matFilename, int maxRadius, int scale) {
+        return decompose(Utils.loadMatChannels(matFilename), maxRadius, scale);
+    }
+
+    /**
+     * Decompose each channel with maxRadius, and find the local minima and maxima with extent >= scale in each
+     * channel. Returns one result per channel. Extents are identical to those of MUDDLEInverted(channels[i],
+     * maxRadius).
+     */
+    public ChannelResult[] decompose(float[][] channels, int maxRadius, int scale) {
+        // Scratch buffers that are not in use by any channel, for this call only
+        ConcurrentLinkedQueue<int[][]> scratch = new ConcurrentLinkedQueue<>();
+        List<Future<ChannelResult>> futures = new ArrayList<>(channels.length);
+        for (float[] channel : channels) {
+            futures.add(pool.submit(() -> {
+                int[][] buffers = scratch.poll();
+                if (buffers == null) {
+                    buffers = new int[2][0];
+                }
+                try {
+                    return decomposeChannel(channel, maxRadius, scale, buffers);
+                } finally {
+                    scratch.offer(buffers);
+                }
+            }));
+        }
+        ChannelResult[] results = new ChannelResult[channels.length];
+        try {
+            for (int i = 0; i < results.length; i++) {
+                results[i] = futures.get(i).get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            for (Future<ChannelResult> future : futures) {
+                future.cancel(true);
+            }
+            throw new RuntimeException(e);
+        }
+        return results;
+    }
+
+    /**
+     * Decompose one channel on the calling thread, using the two scratch buffers in buffers, which are replaced with
+     * larger buffers if they are too small for the channel.
+     */
+    static ChannelResult decomposeChannel(float[] data, int maxRadius, int scale, int[][] buffers) {
+        int n = data.length;
+        if (buffers[0].length < n) {
+            buffers[0] = new int[n];
+            buffers[1] = new int[n];
+        }
+        int[] extent = new int[n];
+        Extents.nearestDominator(data, maxRadius, extent, 0, n, buffers[0], buffers[1]);
+
+        // Collect extrema at the requested scale into the scratch buffers (the kernel is done with them)
+        int[] minIdxs = buffers[0], maxIdxs = buffers[1];
+        int numMinIdxs = 0, numMaxIdxs = 0;
+        for (int t = 0, tEnd = n - 1; t < tEnd; t++) {
+            if (extent[t] >= scale && extent[t] > 0) {
+                if (data[t] > data[t + 1]) {
+                    maxIdxs[numMaxIdxs++] = t;
+                } else if (data[t] < data[t + 1]) {
+                    minIdxs[numMinIdxs++] = t;
+                }
+            }
+        }
+        return new ChannelResult(extent, Arrays.copyOf(minIdxs, numMinIdxs), Arrays.copyOf(maxIdxs, numMaxIdxs));
+    }
+}
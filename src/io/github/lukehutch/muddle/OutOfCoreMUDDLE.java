@@ -0,0 +1,84 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Out-of-core version of the MUDDLEInverted decomposition, for recordings of more than 2^31 samples, or larger than
+ * the heap.
+ *
+ * The input is a raw binary file of little-endian float32 samples (as written by Utils.writeFloat32), which is
+ * memory-mapped one bounded window at a time, and pushed through a MUDDLEStream, so all indices are longs. The
+ * stream retains the last maxRadius samples of each window, so extents are identical to those of MUDDLEInverted
+ * over the whole file, including across window boundaries. The data indices of local minima and maxima with extent
+ * >= scale are written to a pair of LongIndexSinks as they are found, so heap use is O[maxRadius], independent of
+ * the input size.
+ */
+public class OutOfCoreMUDDLE {
+    /** The default window size, in bytes. */
+    public static final long DEFAULT_WINDOW_BYTES = 1L << 26;
+
+    private final int maxRadius;
+    private final int scale;
+    private final long windowBytes;
+
+    public OutOfCoreMUDDLE(int maxRadius, int scale) {
+        this(maxRadius, scale, DEFAULT_WINDOW_BYTES);
+    }
+
+    /** Map the input windowBytes at a time (rounded down to a whole number of samples). */
+    public OutOfCoreMUDDLE(int maxRadius, int scale, long windowBytes) {
+        if (scale < 1) {
+            throw new IllegalArgumentException("scale must be at least 1");
+        }
+        if (windowBytes < 4 || windowBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("windowBytes must be in the range [4, " + Integer.MAX_VALUE + "]");
+        }
+        this.maxRadius = maxRadius;
+        this.scale = scale;
+        this.windowBytes = windowBytes & ~3L;
+    }
+
+    /**
+     * Decompose a raw float32 file, writing the data indices of local minima with extent >= scale to minSink and of
+     * local maxima with extent >= scale to maxSink, in increasing order. The sinks are not closed. Returns the number
+     * of samples processed.
+     */
+    public long decompose(String float32Filename, LongIndexSink minSink, LongIndexSink maxSink) {
+        MUDDLEStream stream = new MUDDLEStream(maxRadius, (t, value, extent, extremumType) -> {
+            if (extent >= scale) {
+                if (extremumType == 1) {
+                    maxSink.add(t);
+                } else {
+                    minSink.add(t);
+                }
+            }
+        });
+        try (FileChannel channel = FileChannel.open(Paths.get(float32Filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size % 4 != 0) {
+                throw new IllegalArgumentException(
+                        "File size " + size + " is not a multiple of 4 bytes: " + float32Filename);
+            }
+            for (long pos = 0; pos < size; pos += windowBytes) {
+                // Each window is unmapped when it is garbage collected
+                stream.push(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(windowBytes, size - pos))
+                        .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        stream.close();
+        return stream.getNumSamples();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel versions of MUDDLE.findPeaks and the MUDDLEInverted decomposition, which split the data into chunks and
+ * process the chunks on a ForkJoinPool. Results are identical to the sequential versions.
+ *
+ * The extent of a data point only depends on the data within maxRadius of the point (plus the length of the data),
+ * so each chunk reads a halo of maxRadius samples on either side of its range. Peaks are then extracted from each
+ * chunk independently, and the per-chunk results are stitched together, filling any gap that spans a chunk boundary.
+ */
+public class ParallelMUDDLE {
+    private final ForkJoinPool pool;
+    private final int minChunkSize;
+
+    public ParallelMUDDLE(ForkJoinPool pool) {
+        this(pool, 1 << 16);
+    }
+
+    /**
+     * Chunks are at least minChunkSize samples long (and at least 4 * radius samples long, so that the halos don't
+     * dominate the work).
+     */
+    public ParallelMUDDLE(ForkJoinPool pool, int minChunkSize) {
+        if (minChunkSize < 1) {
+            throw new IllegalArgumentException("minChunkSize must be at least 1");
+        }
+        this.pool = pool;
+        this.minChunkSize = minChunkSize;
+    }
+
+    /** Perform a MUDDLEInverted decomposition of the data in parallel. */
+    public MUDDLEInverted decompose(float[] data, int maxRadius) {
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.DILATION);
+        int[] extent = new int[data.length];
+        int chunkSize = chunkSize(data.length, maxRadius);
+        forEachChunk(pool, numChunks(data.length, chunkSize), chunk -> {
+            int from = chunk * chunkSize, to = Math.min(data.length, from + chunkSize);
+            Extents.nearestDominator(data, maxRadius, extent, from, to);
+        });
+        MUDDLEMetrics.end(span, data.length);
+        return new MUDDLEInverted(data, maxRadius, extent);
+    }
+
+    /**
+     * Accumulate the per-scale histograms of the extrema of a decomposition in parallel, one chunk per task, then
+     * merge the chunk histograms in order. Returns the same histograms as ScaleHistogram.of(muddle).
+     */
+    public ScaleHistogram scaleHistogram(MUDDLEInverted muddle) {
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.HISTOGRAM);
+        int length = muddle.data.length();
+        // Each merge takes O[maxRadius], so chunks should be large relative to maxRadius
+        int chunkSize = chunkSize(length, Math.max(muddle.maxRadius, 1) * 4);
+        int numChunks = numChunks(length, chunkSize);
+        ScaleHistogram[] chunkHists = new ScaleHistogram[numChunks];
+        forEachChunk(pool, numChunks, chunk -> {
+            int from = chunk * chunkSize, to = Math.min(length, from + chunkSize);
+            chunkHists[chunk] = ScaleHistogram.of(muddle, from, to);
+        });
+        ScaleHistogram hist = numChunks == 0 ? ScaleHistogram.of(muddle) : chunkHists[0];
+        for (int chunk = 1; chunk < numChunks; chunk++) {
+            hist.merge(chunkHists[chunk]);
+        }
+        MUDDLEMetrics.end(span, length);
+        return hist;
+    }
+
+    /** Find peaks in parallel. Returns the same result as MUDDLE.findPeaks(data, radius, spanGaps). */
+    public int[][] findPeaks(float[] data, int radius, boolean spanGaps) {
+        int[] minExtent = new int[data.length], maxExtent = new int[data.length];
+        int chunkSize = chunkSize(data.length, radius);
+        int numChunks = numChunks(data.length, chunkSize);
+        ChunkPeaks[] chunkPeaks = new ChunkPeaks[numChunks];
+
+        // Compute extents of minima and maxima in each chunk
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.DILATION);
+        forEachChunk(pool, numChunks, chunk -> {
+            int from = chunk * chunkSize, to = Math.min(data.length, from + chunkSize);
+            Extents.dilationExtent(data, /* isMax = */false, radius, minExtent, from, to);
+            Extents.dilationExtent(data, /* isMax = */true, radius, maxExtent, from, to);
+        });
+        MUDDLEMetrics.end(span, data.length);
+        span = MUDDLEMetrics.begin(spanGaps ? MUDDLEMetrics.Phase.SPAN_GAPS : MUDDLEMetrics.Phase.MERGE);
+
+        // Extract peaks from each chunk (spanning gaps within the chunk). This has to wait for all extents to be
+        // computed, since a gap search can reach into the neighbouring chunks.
+        forEachChunk(pool, numChunks, chunk -> {
+            int from = chunk * chunkSize, to = Math.min(data.length, from + chunkSize);
+            chunkPeaks[chunk] = new ChunkPeaks(minExtent, maxExtent, radius, spanGaps, from, to);
+        });
+
+        // Stitch chunks together, filling gaps between adjacent same-type extrema on either side of chunk boundaries
+        int numMinIdxs = 0, numMaxIdxs = 0;
+        for (ChunkPeaks cp : chunkPeaks) {
+            numMinIdxs += cp.numMinIdxs + 1;
+            numMaxIdxs += cp.numMaxIdxs + 1;
+        }
+        int[] minIdxs = new int[numMinIdxs], maxIdxs = new int[numMaxIdxs];
+        numMinIdxs = 0;
+        numMaxIdxs = 0;
+        int prevExtremumType = -1, prevDataIdx = 0;
+        for (ChunkPeaks cp : chunkPeaks) {
+            if (cp.firstExtremumType == -1) {
+                // No extrema in chunk
+                continue;
+            }
+            if (spanGaps && cp.firstExtremumType == prevExtremumType) {
+                if (prevExtremumType == 1) {
+                    minIdxs[numMinIdxs++] = Extrema.findMostDominantExtremumBetween(minExtent, null, prevDataIdx,
+                            cp.firstDataIdx);
+                } else {
+                    maxIdxs[numMaxIdxs++] = Extrema.findMostDominantExtremumBetween(maxExtent, null, prevDataIdx,
+                            cp.firstDataIdx);
+                }
+            }
+            System.arraycopy(cp.minIdxs, 0, minIdxs, numMinIdxs, cp.numMinIdxs);
+            numMinIdxs += cp.numMinIdxs;
+            System.arraycopy(cp.maxIdxs, 0, maxIdxs, numMaxIdxs, cp.numMaxIdxs);
+            numMaxIdxs += cp.numMaxIdxs;
+            prevExtremumType = cp.lastExtremumType;
+            prevDataIdx = cp.lastDataIdx;
+        }
+        MUDDLEMetrics.end(span, data.length);
+        return new int[][] { Arrays.copyOf(minIdxs, numMinIdxs), Arrays.copyOf(maxIdxs, numMaxIdxs) };
+    }
+
+    /** The peaks found within one chunk. */
+    private static class ChunkPeaks {
+        int[] minIdxs, maxIdxs;
+        int numMinIdxs, numMaxIdxs;
+        int firstExtremumType = -1, firstDataIdx, lastExtremumType = -1, lastDataIdx;
+
+        /** Same as the merge loop of MUDDLE.findPeaks, restricted to the data points in [from, to). */
+        ChunkPeaks(int[] minExtent, int[] maxExtent, int radius, boolean spanGaps, int from, int to) {
+            minIdxs = new int[to - from];
+            maxIdxs = new int[to - from];
+            for (int t = from; t < to; t++) {
+                // A data point may be both a minimum and a maximum (at the end of the data, or next to a NaN) -- the
+                // min comes first
+                for (int extremumType = 0; extremumType < 2; extremumType++) {
+                    if ((extremumType == 1 ? maxExtent : minExtent)[t] < radius) {
+                        continue;
+                    }
+                    if (firstExtremumType == -1) {
+                        firstExtremumType = extremumType;
+                        firstDataIdx = t;
+                    } else if (spanGaps && extremumType == lastExtremumType) {
+                        // Found two adjacent extrema of same type -- add the most dominant extremum of the opposite
+                        // type between the two
+                        if (extremumType == 1) {
+                            minIdxs[numMinIdxs++] = Extrema.findMostDominantExtremumBetween(minExtent, null,
+                                    lastDataIdx, t);
+                        } else {
+                            maxIdxs[numMaxIdxs++] = Extrema.findMostDominantExtremumBetween(maxExtent, null,
+                                    lastDataIdx, t);
+                        }
+                    }
+                    if (extremumType == 1) {
+                        maxIdxs[numMaxIdxs++] = t;
+                    } else {
+                        minIdxs[numMinIdxs++] = t;
+                    }
+                    lastExtremumType = extremumType;
+                    lastDataIdx = t;
+                }
+            }
+        }
+    }
+
+    private int chunkSize(int dataLength, int radius) {
+        return (int) Math.max(1, Math.max(minChunkSize, Math.min(dataLength, 4L * radius)));
+    }
+
+    private static int numChunks(int dataLength, int chunkSize) {
+        return (int) (((long) dataLength + chunkSize - 1) / chunkSize);
+    }
+
+    interface ChunkKernel {
+        void run(int chunk);
+    }
+
+    /** Run the kernel for each chunk in [0, numChunks) on the pool, and wait for all chunks to complete. */
+    static void forEachChunk(ForkJoinPool pool, int numChunks, ChunkKernel kernel) {
+        if (numChunks > 0) {
+            pool.invoke(new ChunkTask(kernel, 0, numChunks));
+        }
+    }
+
+    /** Recursively splits a range of chunks in half, until there is one chunk per task. */
+    private static class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final ChunkKernel kernel;
+        private final int lo, hi;
+
+        ChunkTask(ChunkKernel kernel, int lo, int hi) {
+            this.kernel = kernel;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo == 1) {
+                kernel.run(lo);
+            } else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new ChunkTask(kernel, lo, mid), new ChunkTask(kernel, mid, hi));
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+/**
+ * Multiscale scale-space structure that dilates the extrema of the data once, up to maxRadius, and can then produce
+ * the same peaks as MUDDLE.findPeaks(data, radius, spanGaps) for any radius <= maxRadius, without redoing any
+ * dilation.
+ *
+ * For each extremum type, the extrema with extent >= 1 are stored as a Cartesian tree: in data index order, with
+ * each extremum's extent >= the extents of its descendants. The live extrema at radius r (those with extent >= r)
+ * are then a subtree that contains the root, and an in-order walk of that subtree that does not descend into
+ * children with extent < r visits exactly the live extrema, in data index order. offsets[r] gives the number of
+ * extrema with extent >= r. Building the pyramid takes O[data.length + maxRadius] time. Extracting the k peaks at
+ * radius r takes O[k] time, plus O[log data.length] per gap if spanGaps is true.
+ */
+public class PeakPyramid {
+    final int dataLength;
+    final int maxRadius;
+    /** The extents that Extrema.dilate() gives after maxRadius dilations. */
+    final int[] minExtent, maxExtent;
+    /** The Cartesian trees of the extrema with extent >= 1. */
+    final ExtremumTree minTree, maxTree;
+    /** minOffsets[r] (or maxOffsets[r]) is the number of extrema with extent >= r, for 1 <= r <= maxRadius. */
+    final int[] minOffsets, maxOffsets;
+    private ExtentRangeIndex minRangeIndex, maxRangeIndex;
+
+    public PeakPyramid(float[] data, int maxRadius) {
+        if (maxRadius < 0) {
+            throw new IllegalArgumentException("maxRadius must be non-negative");
+        }
+        this.dataLength = data.length;
+        this.maxRadius = maxRadius;
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.DILATION);
+        minExtent = new int[data.length];
+        maxExtent = new int[data.length];
+        Extents.dilationExtent(data, /* isMax = */false, maxRadius, minExtent, 0, data.length);
+        Extents.dilationExtent(data, /* isMax = */true, maxRadius, maxExtent, 0, data.length);
+        minOffsets = new int[maxRadius + 2];
+        maxOffsets = new int[maxRadius + 2];
+        minTree = new ExtremumTree(minExtent, maxRadius, minOffsets);
+        maxTree = new ExtremumTree(maxExtent, maxRadius, maxOffsets);
+        MUDDLEMetrics.end(span, data.length);
+    }
+
+    /**
+     * Cartesian tree of the extrema of one type with extent >= 1. Nodes are numbered in data index order, and each
+     * node's extent is >= the extents of its descendants (ties are broken by data index, so an extremum is the
+     * ancestor of any later extremum with the same extent that it is not separated from by a greater extent).
+     */
+    static final class ExtremumTree {
+        /** The data index of each node, in increasing order. */
+        final int[] idxs;
+        /** The left and right child of each node, or -1 if none. */
+        final int[] left, right;
+        /** The root node, or -1 if there are no extrema. */
+        final int root;
+
+        /** Build the tree in O[data.length] time. On exit, offsets[r] is the number of extrema with extent >= r. */
+        ExtremumTree(int[] extent, int maxRadius, int[] offsets) {
+            for (int e : extent) {
+                offsets[e]++;
+            }
+            // Suffix sums: offsets[r] = number of indices with extent >= r
+            for (int r = maxRadius - 1; r >= 0; r--) {
+                offsets[r] += offsets[r + 1];
+            }
+            int n = offsets[1];
+            idxs = new int[n];
+            left = new int[n];
+            right = new int[n];
+            // The right spine of the tree built so far, with non-increasing extents from the root
+            int[] spine = new int[n];
+            int spineSize = 0;
+            for (int t = 0, node = 0; t < extent.length; t++) {
+                int e = extent[t];
+                if (e > 0) {
+                    idxs[node] = t;
+                    // Nodes on the spine with a smaller extent become the new node's left subtree
+                    int lastPopped = -1;
+                    while (spineSize > 0 && extent[idxs[spine[spineSize - 1]]] < e) {
+                        lastPopped = spine[--spineSize];
+                    }
+                    left[node] = lastPopped;
+                    right[node] = -1;
+                    if (spineSize > 0) {
+                        right[spine[spineSize - 1]] = node;
+                    }
+                    spine[spineSize++] = node;
+                    node++;
+                }
+            }
+            root = spineSize > 0 ? spine[0] : -1;
+        }
+
+        /**
+         * The data indices of the numLive extrema with extent >= radius (for radius >= 1), in increasing order, in
+         * O[numLive] time.
+         */
+        int[] liveExtrema(int[] extent, int radius, int numLive) {
+            int[] live = new int[numLive];
+            // The live ancestors whose right subtree has not been visited yet (at most numLive of them)
+            int[] stack = new int[numLive];
+            int numOut = 0, stackSize = 0;
+            int node = root >= 0 && extent[idxs[root]] >= radius ? root : -1;
+            while (node >= 0 || stackSize > 0) {
+                for (; node >= 0; node = left[node] >= 0 && extent[idxs[left[node]]] >= radius ? left[node] : -1) {
+                    stack[stackSize++] = node;
+                }
+                node = stack[--stackSize];
+                live[numOut++] = idxs[node];
+                node = right[node] >= 0 && extent[idxs[right[node]]] >= radius ? right[node] : -1;
+            }
+            return live;
+        }
+    }
+
+    public int getMaxRadius() {
+        return maxRadius;
+    }
+
+    /** The number of local minima with extent >= radius. */
+    public int numMinima(int radius) {
+        return radius == 0 ? dataLength : minOffsets[checkRadius(radius)];
+    }
+
+    /** The number of local maxima with extent >= radius. */
+    public int numMaxima(int radius) {
+        return radius == 0 ? dataLength : maxOffsets[checkRadius(radius)];
+    }
+
+    /**
+     * Returns the same result as MUDDLE.findPeaks(data, radius, spanGaps), for 0 <= radius <= maxRadius: an int
+     * result[2][], with the data indices of local minima in result[0] and the data indices of local maxima in
+     * result[1].
+     */
+    public int[][] findPeaks(int radius, boolean spanGaps) {
+        checkRadius(radius);
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(spanGaps ? MUDDLEMetrics.Phase.SPAN_GAPS
+                : MUDDLEMetrics.Phase.MERGE);
+        int[] minLive = liveExtrema(minTree, minExtent, minOffsets, radius);
+        int[] maxLive = liveExtrema(maxTree, maxExtent, maxOffsets, radius);
+        if (spanGaps) {
+            buildRangeIndices();
+        }
+        int[][] peaks = MUDDLE.mergePeaks(minLive, minLive.length, minExtent, minRangeIndex, maxLive, maxLive.length,
+                maxExtent, maxRangeIndex, spanGaps);
+        MUDDLEMetrics.end(span, dataLength);
+        return peaks;
+    }
+
+    /**
+     * Build the range indices used for spanning gaps, on first use. Opposite-type extrema within a gap between
+     * same-type extrema at radius r all have extent < r, so the extents after maxRadius dilations give the same
+     * result as the extents after r dilations.
+     */
+    private synchronized void buildRangeIndices() {
+        if (minRangeIndex == null) {
+            minRangeIndex = new ExtentRangeIndex(minExtent);
+            maxRangeIndex = new ExtentRangeIndex(maxExtent);
+        }
+    }
+
+    /** The data indices of extrema with extent >= radius, in increasing order. */
+    private int[] liveExtrema(ExtremumTree tree, int[] extent, int[] offsets, int radius) {
+        if (radius == 0) {
+            // At radius 0, all data points are extrema
+            int[] all = new int[dataLength];
+            for (int t = 0; t < dataLength; t++) {
+                all[t] = t;
+            }
+            return all;
+        }
+        return tree.liveExtrema(extent, radius, offsets[radius]);
+    }
+
+    private int checkRadius(int radius) {
+        if (radius < 0 || radius > maxRadius) {
+            throw new IllegalArgumentException("radius must be in the range [0, " + maxRadius + "]");
+        }
+        return radius;
+    }
+}
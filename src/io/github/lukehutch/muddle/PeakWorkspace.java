@@ -0,0 +1,102 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.nio.IntBuffer;
+
+/**
+ * Reusable scratch space for calling findPeaks repeatedly on windows of up to a fixed size (e.g. on a real-time path
+ * that processes a 4096-sample window per channel many times per second), so that the steady state allocates nothing.
+ * 
+ * The workspace owns the live lists and extent arrays of the minima and maxima, and the merge output. Each call
+ * resets them in O[1] (see Extrema.reset()), and writes the results into caller-supplied arrays or IntBuffers.
+ * Spanning gaps uses the linear scan, since a range index would be allocated per call.
+ * 
+ * A workspace is not thread-safe: use one per thread (e.g. in a ThreadLocal), or take one from a pool for each call.
+ */
+public class PeakWorkspace {
+    private final Extrema minima, maxima;
+    /** The merge output, for the IntBuffer variant. */
+    private final int[] minIdxs, maxIdxs;
+    private final int[] numIdxs = new int[2];
+
+    /** Allocate a workspace for windows of up to capacity samples. */
+    public PeakWorkspace(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must be non-negative");
+        }
+        minima = new Extrema(capacity, /* isMax = */false);
+        maxima = new Extrema(capacity, /* isMax = */true);
+        minIdxs = new int[capacity];
+        maxIdxs = new int[capacity];
+    }
+
+    /** The maximum window length. */
+    public int getCapacity() {
+        return minIdxs.length;
+    }
+
+    /** The number of local minima found by the last call to findPeaks. */
+    public int getNumMinima() {
+        return numIdxs[0];
+    }
+
+    /** The number of local maxima found by the last call to findPeaks. */
+    public int getNumMaxima() {
+        return numIdxs[1];
+    }
+
+    /**
+     * Same as MUDDLE.findPeaks(data, radius, spanGaps), but writes the data indices of the local minima to
+     * minIdxsOut and of the local maxima to maxIdxsOut, each of which must be at least data.length long. The number
+     * of indices written is given by getNumMinima() and getNumMaxima().
+     */
+    public void findPeaks(float[] data, int radius, boolean spanGaps, int[] minIdxsOut, int[] maxIdxsOut) {
+        if (data.length > getCapacity()) {
+            throw new IllegalArgumentException(
+                    "data.length " + data.length + " is greater than the capacity " + getCapacity());
+        }
+        if (minIdxsOut.length < data.length || maxIdxsOut.length < data.length) {
+            throw new IllegalArgumentException("Output arrays must be at least data.length long");
+        }
+        if (radius == 0) {
+            // All data points are both minima and maxima, so there is nothing to dilate or merge
+            for (int t = 0; t < data.length; t++) {
+                minIdxsOut[t] = t;
+                maxIdxsOut[t] = t;
+            }
+            numIdxs[0] = numIdxs[1] = data.length;
+            return;
+        }
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.DILATION);
+        minima.reset(data);
+        maxima.reset(data);
+        for (int r = 1; r <= radius; r++) {
+            minima.dilate();
+            maxima.dilate();
+        }
+        MUDDLEMetrics.end(span, data.length);
+
+        span = MUDDLEMetrics.begin(spanGaps ? MUDDLEMetrics.Phase.SPAN_GAPS : MUDDLEMetrics.Phase.MERGE);
+        MUDDLE.mergePeaks(minima.liveExtremumDataIdx, minima.numLiveExtrema, minima.extent, null,
+                maxima.liveExtremumDataIdx, maxima.numLiveExtrema, maxima.extent, null, spanGaps, minIdxsOut,
+                maxIdxsOut, numIdxs);
+        MUDDLEMetrics.end(span, data.length);
+    }
+
+    /**
+     * Same as findPeaks(data, radius, spanGaps, int[], int[]), but puts the data indices of the local minima into
+     * minSink and of the local maxima into maxSink, advancing their positions. Throws BufferOverflowException if a
+     * sink does not have enough space remaining.
+     */
+    public void findPeaks(float[] data, int radius, boolean spanGaps, IntBuffer minSink, IntBuffer maxSink) {
+        findPeaks(data, radius, spanGaps, minIdxs, maxIdxs);
+        minSink.put(minIdxs, 0, numIdxs[0]);
+        maxSink.put(maxIdxs, 0, numIdxs[1]);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ *
+ * Luke Hutchison, 2015
+ *
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+/**
+ * The natural period of a signal, and the optimal radius for finding its peaks, estimated from the alternation
+ * histogram (the fraction of adjacent extrema at each radius that are of opposite type).
+ *
+ * The alternation fraction is integrated over a log radius axis, and averaged over each harmonic interval [r, 2r].
+ * The interval with the highest mean is the one in which the extrema most consistently alternate between minima and
+ * maxima, i.e. the scale at which the signal has one min and one max per period.
+ */
+public class RadiusEstimate {
+    private static final float ONE_OVER_LOG2 = (float) (1.0 / Math.log(2));
+    private static final float SQRT2 = (float) Math.sqrt(2);
+
+    /**
+     * alternationHist[r] is the alternation fraction of the extrema at radius r (the fraction of adjacent pairs, or
+     * of extrema, that are of opposite type to the extremum before them, depending on the histogram's producer).
+     */
+    public final float[] alternationHist;
+    /**
+     * harmonicIntervalMean[r] is the mean of the alternation fraction over the radius interval [r, 2r], on a log
+     * radius axis.
+     */
+    public final float[] harmonicIntervalMean;
+    /** The radius r at which harmonicIntervalMean[r] is greatest. */
+    public final int maxMeanRadius;
+    /** The approximate natural period of the signal. */
+    public final float naturalPeriod;
+    /** The radius at the center (in the log domain) of the harmonic interval with the greatest mean. */
+    public final int optimalRadius;
+
+    public RadiusEstimate(float[] alternationHist) {
+        this.alternationHist = alternationHist;
+
+        // Perform trapezoidal integration on hist, using log x-axis, then find average value
+        // over interval [r, 2r] using the First Mean Value Theorem for Integrals:
+        // Mean = (F(2x) - F(x)) / (ln(2x) - ln(x)) = (F(2x) - F(x)) / ln(2)
+        float[] cumulLogHist = new float[alternationHist.length];
+        float log_rMinus1 = 0.0f;
+        for (int r = 2; r < alternationHist.length; r++) {
+            float log_r = (float) Math.log(r);
+            float trapArea = (log_r - log_rMinus1) * (alternationHist[r] + alternationHist[r - 1]) * 0.5f;
+            cumulLogHist[r] = cumulLogHist[r - 1] + trapArea;
+            log_rMinus1 = log_r;
+        }
+        harmonicIntervalMean = new float[alternationHist.length / 2];
+        float maxMean = 0.0f;
+        int maxMeanRadius = 0;
+        for (int r = 1; r < harmonicIntervalMean.length; r++) {
+            // For radius r, signal period is 2r + 1
+            // For radius 2r, signal period is 2(2r) + 1 = 4r + 1.
+            // => If signal period increases by (2r / r) = r, period increases by (4r + 1)/(2r + 1) = (2r + 1/2)/(r +
+            // 1/2).
+            // But this is close enough to 2r.
+            float mean = (cumulLogHist[r * 2] - cumulLogHist[r]) * ONE_OVER_LOG2;
+            harmonicIntervalMean[r] = mean;
+            if (mean > maxMean) {
+                maxMean = mean;
+                maxMeanRadius = r;
+            }
+        }
+        this.maxMeanRadius = maxMeanRadius;
+        // Halfway through the interval of width ln(2) in the log domain occurs at an offset of
+        // e^(ln(2)/2) = e^(ln(2^(1/2))) = sqrt(2) from the start of the interval in the linear domain.
+        this.optimalRadius = Math.round(maxMeanRadius * SQRT2);
+        // N.B. would be more accurate if we used parabolic fit for maxMeanRadius
+        this.naturalPeriod = 2 * maxMeanRadius + 2;
+    }
+
+    @Override
+    public String toString() {
+        return "Max mean radius: " + maxMeanRadius + "; approx natural period: " + naturalPeriod
+                + "; optimal radius: " + optimalRadius;
+    }
+}
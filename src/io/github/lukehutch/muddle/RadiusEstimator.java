@@ -0,0 +1,156 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ *
+ * Luke Hutchison, 2015
+ *
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.util.Arrays;
+
+/**
+ * Online estimator of the natural period and optimal peak radius of a signal, which accumulates the alternation
+ * histogram as data arrives, rather than recomputing it from scratch.
+ *
+ * Windows of samples are passed to update(), which feeds them through a MUDDLEStream; as the extent of each data
+ * point is finalized, the extremum is appended to the sequence of extrema at each radius up to its extent, counting
+ * whether it has the opposite type to the previous extremum at that radius. (Alternatively, the estimator can be
+ * registered as the listener of an existing MUDDLEStream, in which case update() should not be called.) Since
+ * extrema with extent >= r are more than r samples apart, the cost is O[log maxRadius] per sample, amortized.
+ *
+ * estimate() computes a RadiusEstimate from the current counts in O[maxRadius] time. Calling decay() between
+ * windows exponentially down-weights older windows, so that the estimate tracks a changing natural period.
+ *
+ * The static estimate(float[], int) counts the same MUDDLEInverted extents, in O[data.length + maxRadius] time, so
+ * it gives the same estimate as the online estimator would for the whole of the data, once the last maxRadius
+ * extents had been finalized. (alternationHistogram(float[], int) is the alternation histogram of MUDDLE.findPeaks,
+ * which uses dilation extents instead. The two agree away from the ends of the data, for finite samples.)
+ */
+public class RadiusEstimator implements MUDDLEStream.ExtentListener {
+    private final int maxRadius;
+    private final MUDDLEStream stream;
+    /** The type of the last extremum at each radius: 1 for a max, -1 for a min, or 0 if none yet. */
+    private final int[] prevExtremumType;
+    /** The (decayed) number of adjacent extremum pairs, and of opposite-type adjacent pairs, at each radius. */
+    private final double[] numPairs, numAlternating;
+
+    public RadiusEstimator(int maxRadius) {
+        checkMaxRadius(maxRadius);
+        this.maxRadius = maxRadius;
+        this.stream = new MUDDLEStream(maxRadius, this);
+        this.prevExtremumType = new int[maxRadius + 1];
+        this.numPairs = new double[maxRadius + 1];
+        this.numAlternating = new double[maxRadius + 1];
+    }
+
+    public int getMaxRadius() {
+        return maxRadius;
+    }
+
+    private static void checkMaxRadius(int maxRadius) {
+        if (maxRadius < 1) {
+            throw new IllegalArgumentException("maxRadius must be at least 1");
+        }
+    }
+
+    /** Feed a window of samples through the estimator's stream. */
+    public void update(float[] samples, int off, int len) {
+        stream.push(samples, off, len);
+    }
+
+    /** Feed a window of samples through the estimator's stream. */
+    public void update(float[] samples) {
+        stream.push(samples);
+    }
+
+    @Override
+    public void extentFinalized(long t, float value, int extent, int extremumType) {
+        for (int r = 1; r <= extent; r++) {
+            if (prevExtremumType[r] != 0) {
+                numPairs[r] += 1.0;
+                if (extremumType != prevExtremumType[r]) {
+                    numAlternating[r] += 1.0;
+                }
+            }
+            prevExtremumType[r] = extremumType;
+        }
+    }
+
+    /** Multiply the counts accumulated so far by factor (in the range [0, 1]). */
+    public void decay(double factor) {
+        if (factor < 0.0 || factor > 1.0) {
+            throw new IllegalArgumentException("factor must be in the range [0, 1]");
+        }
+        for (int r = 1; r <= maxRadius; r++) {
+            numPairs[r] *= factor;
+            numAlternating[r] *= factor;
+        }
+    }
+
+    /** Discard the counts accumulated so far (the stream state is kept). */
+    public void reset() {
+        Arrays.fill(numPairs, 0.0);
+        Arrays.fill(numAlternating, 0.0);
+    }
+
+    /** Estimate the natural period and optimal radius from the counts accumulated so far. */
+    public RadiusEstimate estimate() {
+        float[] alternationHist = new float[maxRadius + 1];
+        for (int r = 1; r <= maxRadius; r++) {
+            alternationHist[r] = numPairs[r] == 0.0 ? 0.0f : (float) numAlternating[r] / (float) numPairs[r];
+        }
+        return new RadiusEstimate(alternationHist);
+    }
+
+    /**
+     * Estimate the natural period and optimal radius of the data, from the alternation counts of its MUDDLEInverted
+     * extents, as the online estimator counts them.
+     */
+    public static RadiusEstimate estimate(float[] data, int maxRadius) {
+        checkMaxRadius(maxRadius);
+        return estimate(new MUDDLEInverted(data, maxRadius, MUDDLEInverted.ExtentAlgorithm.NEAREST_DOMINATOR));
+    }
+
+    /** Same as estimate(float[], int), from the extents of a MUDDLEInverted decomposition. */
+    static RadiusEstimate estimate(MUDDLEInverted muddle) {
+        checkMaxRadius(muddle.maxRadius);
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.HISTOGRAM);
+        RadiusEstimate estimate = new RadiusEstimate(ScaleHistogram.of(muddle).alternationHist());
+        MUDDLEMetrics.end(span, muddle.data.length());
+        return estimate;
+    }
+
+    /**
+     * Returns hist[r], the fraction of adjacent pairs of extrema (as found by MUDDLE.findPeaks(data, r, false)) that
+     * are of opposite type, for 1 <= r <= maxRadius.
+     *
+     * Rather than dilating and re-merging the minima and maxima at every radius, the extents after maxRadius
+     * dilations are computed once, and the extrema are counted by a ScaleHistogram in O[data.length + maxRadius]
+     * time.
+     */
+    public static float[] alternationHistogram(float[] data, int maxRadius) {
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.HISTOGRAM);
+        int[] minExtent = new int[data.length], maxExtent = new int[data.length];
+        Extents.dilationExtent(data, /* isMax = */false, maxRadius, minExtent, 0, data.length);
+        Extents.dilationExtent(data, /* isMax = */true, maxRadius, maxExtent, 0, data.length);
+        float[] alternationHist = alternationHistogram(minExtent, maxExtent, maxRadius);
+        MUDDLEMetrics.end(span, data.length);
+        return alternationHist;
+    }
+
+    /**
+     * The alternation histogram of the extrema with the given dilation extents, capped at maxRadius (the extents
+     * after maxRadius dilations are the extents after any greater number of dilations, capped at maxRadius).
+     */
+    static float[] alternationHistogram(int[] minExtent, int[] maxExtent, int maxRadius) {
+        ScaleHistogram hist = new ScaleHistogram(maxRadius);
+        for (int t = 0; t < minExtent.length; t++) {
+            // A data point may be both a minimum and a maximum (at the end of the data, or next to a NaN) -- the min
+            // comes first
+            hist.add(t, -1, Math.min(minExtent[t], maxRadius));
+            hist.add(t, 1, Math.min(maxExtent[t], maxRadius));
+        }
+        return hist.alternationHist();
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ *
+ * Luke Hutchison, 2015
+ *
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Read-only view of a sequence of samples of any primitive type, so that the engines can read double[], int[],
+ * short[], FloatBuffer and DoubleBuffer input in place, without boxing, and without converting the input to a new
+ * float[] (which doubles the memory used, and loses precision for double and int samples).
+ *
+ * The engines only compare samples with each other, so samples are compared in their own type, with the same
+ * semantics as the primitive comparison operators (including for NaN).
+ */
+public abstract class Samples {
+
+    public static Samples of(float[] data) {
+        return new FloatArraySamples(data);
+    }
+
+    public static Samples of(double[] data) {
+        return new DoubleArraySamples(data);
+    }
+
+    public static Samples of(int[] data) {
+        return new IntArraySamples(data);
+    }
+
+    public static Samples of(short[] data) {
+        return new ShortArraySamples(data);
+    }
+
+    /** View of the remaining samples in the buffer (changes to the buffer's position do not affect the view). */
+    public static Samples of(FloatBuffer buffer) {
+        return new FloatBufferSamples(buffer.slice());
+    }
+
+    /** View of the remaining samples in the buffer (changes to the buffer's position do not affect the view). */
+    public static Samples of(DoubleBuffer buffer) {
+        return of(buffer, 0, 1, buffer.remaining());
+    }
+
+    /**
+     * View of every stride'th sample of the buffer, starting at offset from the buffer's position (e.g. one row of a
+     * column-major matrix).
+     */
+    public static Samples of(DoubleBuffer buffer, int offset, int stride, int length) {
+        if (offset < 0 || stride < 1 || length < 0
+                || (length > 0 && offset + (long) (length - 1) * stride >= buffer.remaining())) {
+            throw new IllegalArgumentException("View is out of range of the buffer");
+        }
+        return new DoubleBufferSamples(buffer.slice(), offset, stride, length);
+    }
+
+    /** The number of samples. */
+    public abstract int length();
+
+    /** Sample i, widened to double. */
+    public abstract double get(int i);
+
+    /** Same as (sample i > sample j). */
+    public abstract boolean greater(int i, int j);
+
+    /** Same as (sample i >= sample j). */
+    public abstract boolean greaterOrEqual(int i, int j);
+
+    /**
+     * Copy samples [from, from + len) to dst[off, off + len), widened to double. Every sample type widens to double
+     * exactly, so the copied samples compare the same way as the samples themselves. The kernels read samples in
+     * bulk through this method (or through gather()), so that the comparisons in their inner loops are on primitive
+     * doubles, rather than calls to greater() that become megamorphic once more than two sample types are in use.
+     */
+    void get(int from, double[] dst, int off, int len) {
+        for (int i = 0; i < len; i++) {
+            dst[off + i] = get(from + i);
+        }
+    }
+
+    /**
+     * Set dst[i] to sample (idxs[off + i] + delta), widened to double, for i in [0, len), or to NaN if the index is
+     * out of range (so that, like NaN, an out-of-range neighbour compares false with every sample).
+     */
+    void gather(int[] idxs, int off, int len, int delta, double[] dst) {
+        int n = length();
+        for (int i = 0; i < len; i++) {
+            int t = idxs[off + i] + delta;
+            dst[i] = t >= 0 && t < n ? get(t) : Double.NaN;
+        }
+    }
+
+    /** The backing array, if the samples are a float[], otherwise null (used to pick the float[] kernels). */
+    float[] floatArray() {
+        return null;
+    }
+
+    static final class FloatArraySamples extends Samples {
+        private final float[] data;
+
+        FloatArraySamples(float[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int length() {
+            return data.length;
+        }
+
+        @Override
+        public double get(int i) {
+            return data[i];
+        }
+
+        @Override
+        public boolean greater(int i, int j) {
+            return data[i] > data[j];
+        }
+
+        @Override
+        public boolean greaterOrEqual(int i, int j) {
+            return data[i] >= data[j];
+        }
+
+        @Override
+        void get(int from, double[] dst, int off, int len) {
+            for (int i = 0; i < len; i++) {
+                dst[off + i] = data[from + i];
+            }
+        }
+
+        @Override
+        void gather(int[] idxs, int off, int len, int delta, double[] dst) {
+            for (int i = 0; i < len; i++) {
+                int t = idxs[off + i] + delta;
+                dst[i] = t >= 0 && t < data.length ? data[t] : Double.NaN;
+            }
+        }
+
+        @Override
+        float[] floatArray() {
+            return data;
+        }
+    }
+
+    static final class DoubleArraySamples extends Samples {
+        private final double[] data;
+
+        DoubleArraySamples(double[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int length() {
+            return data.length;
+        }
+
+        @Override
+        public double get(int i) {
+            return data[i];
+        }
+
+        @Override
+        public boolean greater(int i, int j) {
+            return data[i] > data[j];
+        }
+
+        @Override
+        public boolean greaterOrEqual(int i, int j) {
+            return data[i] >= data[j];
+        }
+
+        @Override
+        void get(int from, double[] dst, int off, int len) {
+            for (int i = 0; i < len; i++) {
+                dst[off + i] = data[from + i];
+            }
+        }
+
+        @Override
+        void gather(int[] idxs, int off, int len, int delta, double[] dst) {
+            for (int i = 0; i < len; i++) {
+                int t = idxs[off + i] + delta;
+                dst[i] = t >= 0 && t < data.length ? data[t] : Double.NaN;
+            }
+        }
+    }
+
+    static final class IntArraySamples extends Samples {
+        private final int[] data;
+
+        IntArraySamples(int[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int length() {
+            return data.length;
+        }
+
+        @Override
+        public double get(int i) {
+            return data[i];
+        }
+
+        @Override
+        public boolean greater(int i, int j) {
+            return data[i] > data[j];
+        }
+
+        @Override
+        public boolean greaterOrEqual(int i, int j) {
+            return data[i] >= data[j];
+        }
+
+        @Override
+        void get(int from, double[] dst, int off, int len) {
+            for (int i = 0; i < len; i++) {
+                dst[off + i] = data[from + i];
+            }
+        }
+
+        @Override
+        void gather(int[] idxs, int off, int len, int delta, double[] dst) {
+            for (int i = 0; i < len; i++) {
+                int t = idxs[off + i] + delta;
+                dst[i] = t >= 0 && t < data.length ? data[t] : Double.NaN;
+            }
+        }
+    }
+
+    static final class ShortArraySamples extends Samples {
+        private final short[] data;
+
+        ShortArraySamples(short[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int length() {
+            return data.length;
+        }
+
+        @Override
+        public double get(int i) {
+            return data[i];
+        }
+
+        @Override
+        public boolean greater(int i, int j) {
+            return data[i] > data[j];
+        }
+
+        @Override
+        public boolean greaterOrEqual(int i, int j) {
+            return data[i] >= data[j];
+        }
+
+        @Override
+        void get(int from, double[] dst, int off, int len) {
+            for (int i = 0; i < len; i++) {
+                dst[off + i] = data[from + i];
+            }
+        }
+
+        @Override
+        void gather(int[] idxs, int off, int len, int delta, double[] dst) {
+            for (int i = 0; i < len; i++) {
+                int t = idxs[off + i] + delta;
+                dst[i] = t >= 0 && t < data.length ? data[t] : Double.NaN;
+            }
+        }
+    }
+
+    static final class FloatBufferSamples extends Samples {
+        private final FloatBuffer data;
+
+        FloatBufferSamples(FloatBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public int length() {
+            return data.limit();
+        }
+
+        @Override
+        public double get(int i) {
+            return data.get(i);
+        }
+
+        @Override
+        public boolean greater(int i, int j) {
+            return data.get(i) > data.get(j);
+        }
+
+        @Override
+        public boolean greaterOrEqual(int i, int j) {
+            return data.get(i) >= data.get(j);
+        }
+
+        @Override
+        void get(int from, double[] dst, int off, int len) {
+            for (int i = 0; i < len; i++) {
+                dst[off + i] = data.get(from + i);
+            }
+        }
+
+        @Override
+        void gather(int[] idxs, int off, int len, int delta, double[] dst) {
+            for (int i = 0; i < len; i++) {
+                int t = idxs[off + i] + delta;
+                dst[i] = t >= 0 && t < data.limit() ? data.get(t) : Double.NaN;
+            }
+        }
+    }
+
+    static final class DoubleBufferSamples extends Samples {
+        private final DoubleBuffer data;
+        private final int offset, stride, length;
+
+        DoubleBufferSamples(DoubleBuffer data, int offset, int stride, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.stride = stride;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public double get(int i) {
+            return data.get(offset + i * stride);
+        }
+
+        @Override
+        public boolean greater(int i, int j) {
+            return data.get(offset + i * stride) > data.get(offset + j * stride);
+        }
+
+        @Override
+        public boolean greaterOrEqual(int i, int j) {
+            return data.get(offset + i * stride) >= data.get(offset + j * stride);
+        }
+
+        @Override
+        void get(int from, double[] dst, int off, int len) {
+            for (int i = 0; i < len; i++) {
+                dst[off + i] = data.get(offset + (from + i) * stride);
+            }
+        }
+
+        @Override
+        void gather(int[] idxs, int off, int len, int delta, double[] dst) {
+            for (int i = 0; i < len; i++) {
+                int t = idxs[off + i] + delta;
+                dst[i] = t >= 0 && t < length ? data.get(offset + t * stride) : Double.NaN;
+            }
+        }
+    }
+}
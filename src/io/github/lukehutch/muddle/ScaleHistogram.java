@@ -0,0 +1,376 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+/**
+ * Per-scale histograms of a sequence of extrema: for each radius r in [1, maxRadius], the number of extrema with
+ * extent >= r, the number of adjacent pairs of those extrema and of opposite-type adjacent pairs (for the alternation
+ * histogram), and the separations of same-type adjacent pairs (for the separation histogram).
+ * 
+ * Counting each extremum at every radius up to its extent takes O[sum of extents], which approaches
+ * O[numExtrema * maxRadius] for smooth signals. Instead, extrema are appended in increasing order of data index to a
+ * monotonic stack of the last extremum with extent >= r, for each r. Two extrema are adjacent at radius r for a
+ * contiguous range of r, which is known as soon as the later one is appended, so each adjacent pair is recorded once,
+ * as a range, in difference arrays over r. Each append pops the extrema that the new extremum hides, so the total
+ * time is O[numExtrema + maxRadius].
+ * 
+ * A histogram can be accumulated for each chunk of the data in parallel, then the chunk histograms merged in order
+ * (see ParallelMUDDLE.scaleHistogram()). Each chunk keeps the extrema visible from its left and right boundaries
+ * (at most maxRadius of each), so merging two adjacent chunks takes O[maxRadius].
+ */
+public class ScaleHistogram {
+    /** The number of separation histogram bins, of width 2^SEPARATION_BIN_POW on a log separation/radius axis. */
+    public static final int NUM_SEPARATION_BINS = 4;
+    public static final double SEPARATION_BIN_POW = 0.2;
+
+    /** binRatio[i] is the upper bound of separation/radius for bin i. */
+    private static final float[] binRatio = new float[NUM_SEPARATION_BINS];
+    private static final float[] binRatioInv = new float[NUM_SEPARATION_BINS];
+    static {
+        for (int i = 0; i < NUM_SEPARATION_BINS; i++) {
+            double ratio = Math.pow(2, (i + 1) * SEPARATION_BIN_POW);
+            binRatio[i] = (float) ratio;
+            binRatioInv[i] = (float) (1.0 / ratio);
+        }
+    }
+
+    private final int maxRadius;
+
+    /** Difference arrays over r: the count at radius r is the sum of entries [0, r]. */
+    private final int[] numExtremaDiff, numPairsDiff, numAlternatingDiff;
+    private final int[][] separationDiff;
+
+    /**
+     * The extrema visible from the left boundary, i.e. the first extremum with extent >= r for each r, in increasing
+     * order of data index (and strictly increasing extent).
+     */
+    private final Staircase first;
+    /**
+     * The extrema visible from the right boundary, i.e. the last extremum with extent >= r for each r, in increasing
+     * order of data index (and strictly decreasing extent). The last entry is the most recently added extremum.
+     */
+    private final Staircase last;
+    private int lastDataIdx = Integer.MIN_VALUE;
+
+    /** Extrema with strictly monotonic extents in [1, maxRadius], so there are at most maxRadius of them. */
+    private static class Staircase {
+        final int[] dataIdx, extremumType, extent;
+        int size;
+
+        Staircase(int maxRadius) {
+            dataIdx = new int[maxRadius];
+            extremumType = new int[maxRadius];
+            extent = new int[maxRadius];
+        }
+
+        void add(int t, int type, int ext) {
+            dataIdx[size] = t;
+            extremumType[size] = type;
+            extent[size] = ext;
+            size++;
+        }
+
+        int maxExtent(boolean increasing) {
+            return size == 0 ? 0 : extent[increasing ? size - 1 : 0];
+        }
+    }
+
+    public ScaleHistogram(int maxRadius) {
+        if (maxRadius < 0) {
+            throw new IllegalArgumentException("maxRadius must be non-negative");
+        }
+        this.maxRadius = maxRadius;
+        numExtremaDiff = new int[maxRadius + 2];
+        numPairsDiff = new int[maxRadius + 2];
+        numAlternatingDiff = new int[maxRadius + 2];
+        separationDiff = new int[NUM_SEPARATION_BINS][maxRadius + 2];
+        first = new Staircase(maxRadius);
+        last = new Staircase(maxRadius);
+    }
+
+    /**
+     * The histograms of the extrema of a MUDDLEInverted decomposition at data indices in [from, to), where the
+     * extremum at t has type 1 if data[t] > data[t + 1], -1 if data[t] < data[t + 1], or 0 otherwise.
+     */
+    public static ScaleHistogram of(MUDDLEInverted muddle, int from, int to) {
+        ScaleHistogram hist = new ScaleHistogram(Math.max(muddle.maxRadius, 1));
+        Samples data = muddle.data;
+        for (int t = from, tEnd = Math.min(to, data.length() - 1); t < tEnd; t++) {
+            // Optimization -- most data points are not extrema, even at r = 1
+            if (muddle.extent[t] > 0) {
+                int extremumType = data.greater(t, t + 1) ? 1 : data.greater(t + 1, t) ? -1 : 0;
+                hist.add(t, extremumType, muddle.extent[t]);
+            }
+        }
+        return hist;
+    }
+
+    /** The histograms of all the extrema of a MUDDLEInverted decomposition. */
+    public static ScaleHistogram of(MUDDLEInverted muddle) {
+        return of(muddle, 0, muddle.data.length());
+    }
+
+    public int getMaxRadius() {
+        return maxRadius;
+    }
+
+    /**
+     * Append an extremum at data index t, which must not be less than the data index of the previous extremum, with
+     * type 1 for a max or -1 for a min (or 0 for neither, which ends the pair sequence at each radius up to its
+     * extent). Extrema with extent 0 are ignored.
+     */
+    public void add(int t, int extremumType, int extent) {
+        if (extent > maxRadius) {
+            throw new IllegalArgumentException("extent " + extent + " is greater than maxRadius " + maxRadius);
+        }
+        if (extent <= 0) {
+            return;
+        }
+        if (t < lastDataIdx) {
+            throw new IllegalArgumentException("Extrema must be added in increasing order of data index");
+        }
+        lastDataIdx = t;
+        numExtremaDiff[1]++;
+        numExtremaDiff[extent + 1]--;
+        if (extent > first.maxExtent(/* increasing = */true)) {
+            first.add(t, extremumType, extent);
+        }
+        // The extremum is adjacent to the last extremum with extent >= r, for each r up to its extent. These are the
+        // stack entries with extent up to the first one >= extent, each adjacent for the range of r it covers.
+        int lo = 1;
+        while (last.size > 0 && lo <= extent) {
+            int i = last.size - 1;
+            recordPair(last.dataIdx[i], last.extremumType[i], t, extremumType, lo,
+                    Math.min(last.extent[i], extent));
+            lo = last.extent[i] + 1;
+            if (last.extent[i] <= extent) {
+                // Hidden by the new extremum at every radius
+                last.size--;
+            } else {
+                break;
+            }
+        }
+        last.add(t, extremumType, extent);
+    }
+
+    /**
+     * Merge in the histograms of the extrema that immediately follow this histogram's extrema (e.g. those of the
+     * next chunk of the data), as if they had been added to this histogram. Returns this histogram.
+     */
+    public ScaleHistogram merge(ScaleHistogram next) {
+        if (next.maxRadius != maxRadius) {
+            throw new IllegalArgumentException("Histograms have different maxRadius");
+        }
+        if (next.first.size == 0) {
+            return this;
+        }
+        if (next.first.dataIdx[0] < lastDataIdx) {
+            throw new IllegalArgumentException("Histograms must be merged in increasing order of data index");
+        }
+        addDiff(numExtremaDiff, next.numExtremaDiff);
+        addDiff(numPairsDiff, next.numPairsDiff);
+        addDiff(numAlternatingDiff, next.numAlternatingDiff);
+        for (int i = 0; i < NUM_SEPARATION_BINS; i++) {
+            addDiff(separationDiff[i], next.separationDiff[i]);
+        }
+
+        // Pairs across the boundary: for each r, the last extremum here with extent >= r is adjacent to the first
+        // extremum there with extent >= r. Walk both staircases in increasing order of extent.
+        for (int i = last.size - 1, j = 0, lo = 1; i >= 0 && j < next.first.size;) {
+            int extentL = last.extent[i], extentR = next.first.extent[j];
+            int hi = Math.min(extentL, extentR);
+            recordPair(last.dataIdx[i], last.extremumType[i], next.first.dataIdx[j], next.first.extremumType[j], lo,
+                    hi);
+            lo = hi + 1;
+            if (extentL == hi) {
+                i--;
+            }
+            if (extentR == hi) {
+                j++;
+            }
+        }
+
+        // The extrema there that are visible from the left boundary, past the extrema here
+        int maxExtentHere = first.maxExtent(/* increasing = */true);
+        for (int j = 0; j < next.first.size; j++) {
+            if (next.first.extent[j] > maxExtentHere) {
+                first.add(next.first.dataIdx[j], next.first.extremumType[j], next.first.extent[j]);
+            }
+        }
+        // The extrema here that are still visible from the right boundary, followed by those there
+        int maxExtentThere = next.last.maxExtent(/* increasing = */false);
+        int numKept = 0;
+        while (numKept < last.size && last.extent[numKept] > maxExtentThere) {
+            numKept++;
+        }
+        last.size = numKept;
+        for (int j = 0; j < next.last.size; j++) {
+            last.add(next.last.dataIdx[j], next.last.extremumType[j], next.last.extent[j]);
+        }
+        lastDataIdx = next.lastDataIdx;
+        return this;
+    }
+
+    private static void addDiff(int[] diff, int[] otherDiff) {
+        for (int r = 0; r < diff.length; r++) {
+            diff[r] += otherDiff[r];
+        }
+    }
+
+    /** Record that the extrema at t0 < t1 are adjacent for radii in [lo, hi]. */
+    private void recordPair(int t0, int type0, int t1, int type1, int lo, int hi) {
+        if (lo > hi || type0 == 0) {
+            return;
+        }
+        numPairsDiff[lo]++;
+        numPairsDiff[hi + 1]--;
+        if (type1 != type0) {
+            numAlternatingDiff[lo]++;
+            numAlternatingDiff[hi + 1]--;
+            return;
+        }
+        int sep = t1 - t0;
+        if (sep > maxRadius) {
+            return;
+        }
+        // The pair is in the first bin i with sep / r < binRatio[i]. As r increases, sep / r decreases, so bin i
+        // covers the radii [minRadius(i), minRadius(i - 1)), where minRadius(i) is the least r that puts the pair in
+        // bin i or a lower bin. Usually the pair stays in the same bin over [lo, hi], so the search is skipped.
+        int binLo = bin(sep, lo), binHi = bin(sep, hi);
+        int rEnd = hi + 1;
+        for (int i = binHi; i < binLo; i++) {
+            int rStart = Math.max(lo, minRadius(sep, binRatio[i]));
+            if (rStart < rEnd) {
+                separationDiff[i][rStart]++;
+                separationDiff[i][rEnd]--;
+                rEnd = rStart;
+            }
+        }
+        if (binLo < NUM_SEPARATION_BINS) {
+            separationDiff[binLo][lo]++;
+            separationDiff[binLo][rEnd]--;
+        }
+    }
+
+    /** The separation histogram bin of a pair separated by sep at radius r, or NUM_SEPARATION_BINS if none. */
+    private static int bin(int sep, int r) {
+        float sepRatio = (float) sep / (float) r;
+        int i = 0;
+        while (i < NUM_SEPARATION_BINS && !(sepRatio < binRatio[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    /** The least r >= 1 for which (float) sep / (float) r < ratio, with exactly the same float rounding. */
+    private static int minRadius(int sep, float ratio) {
+        int r = Math.max(1, (int) (sep / ratio));
+        while (r > 1 && (float) sep / (float) (r - 1) < ratio) {
+            r--;
+        }
+        while (!((float) sep / (float) r < ratio)) {
+            r++;
+        }
+        return r;
+    }
+
+    private int[] prefixSum(int[] diff) {
+        int[] counts = new int[maxRadius + 1];
+        int count = 0;
+        for (int r = 1; r <= maxRadius; r++) {
+            count += diff[r];
+            counts[r] = count;
+        }
+        return counts;
+    }
+
+    /** numExtrema[r] is the number of extrema with extent >= r. */
+    public int[] numExtrema() {
+        return prefixSum(numExtremaDiff);
+    }
+
+    /** numPairs[r] is the number of adjacent pairs of extrema at radius r (where the first has non-zero type). */
+    public int[] numPairs() {
+        return prefixSum(numPairsDiff);
+    }
+
+    /** numAlternating[r] is the number of adjacent pairs of extrema at radius r that are of different type. */
+    public int[] numAlternating() {
+        return prefixSum(numAlternatingDiff);
+    }
+
+    /** alternationHist[r] is the fraction of adjacent pairs of extrema at radius r that are of opposite type. */
+    public float[] alternationHist() {
+        int[] numPairs = numPairs(), numAlternating = numAlternating();
+        float[] alternationHist = new float[maxRadius + 1];
+        for (int r = 1; r <= maxRadius; r++) {
+            alternationHist[r] = numPairs[r] == 0 ? 0.0f : (float) numAlternating[r] / (float) numPairs[r];
+        }
+        return alternationHist;
+    }
+
+    /**
+     * alternationPerExtremumHist[r] is the number of extrema at radius r that follow an extremum of opposite type, as
+     * a fraction of all the extrema at radius r (including the first, which follows none). This is the alternation
+     * histogram of MUDDLEInverted.produceAltFracHist().
+     */
+    public float[] alternationPerExtremumHist() {
+        int[] numExtrema = numExtrema(), numAlternating = numAlternating();
+        float[] alternationHist = new float[maxRadius + 1];
+        for (int r = 1; r <= maxRadius; r++) {
+            alternationHist[r] = numExtrema[r] == 0 ? 0.0f : (float) numAlternating[r] / (float) numExtrema[r];
+        }
+        return alternationHist;
+    }
+
+    /**
+     * separationHist[r][i] is the number of adjacent same-type pairs of extrema at radius r, separated by at most
+     * maxRadius samples, whose separation / r falls in bin i, i.e. is less than 2^((i + 1) * SEPARATION_BIN_POW) but
+     * not less than the upper bound of bin i - 1.
+     */
+    public int[][] separationHist() {
+        int[][] separationHist = new int[maxRadius + 1][NUM_SEPARATION_BINS];
+        for (int i = 0; i < NUM_SEPARATION_BINS; i++) {
+            int[] counts = prefixSum(separationDiff[i]);
+            for (int r = 1; r <= maxRadius; r++) {
+                separationHist[r][i] = counts[r];
+            }
+        }
+        return separationHist;
+    }
+
+    /**
+     * Resample each bin of the separation histogram onto a common separation axis and sum the bins, then combine
+     * each separation s with its second harmonic 2s - 2. Returns an array of length maxRadius / 2.
+     */
+    public float[] harmonicSeparationHist() {
+        int[][] sepHist = separationHist();
+        float[] resampledSepHist = new float[maxRadius + 1];
+        for (int i = 1; i < resampledSepHist.length; i++) {
+            // Accumulate linear interpolation of domain-scaled histogram for each bin
+            for (int j = 0; j < NUM_SEPARATION_BINS; j++) {
+                float scaledIdx = i * binRatioInv[j];
+                int scaledIdxInt = (int) scaledIdx;
+                float weight = scaledIdx - scaledIdxInt;
+                if (scaledIdxInt < maxRadius) {
+                    resampledSepHist[i] += (1.0f - weight) * sepHist[scaledIdxInt][j]
+                            + weight * sepHist[scaledIdxInt + 1][j];
+                }
+            }
+        }
+        float[] harmonicCombinedHist = new float[maxRadius / 2];
+        for (int i = 2; i < harmonicCombinedHist.length; i++) {
+            int ii = 2 * i - 2;
+            if (ii > 1 && ii < maxRadius - 1) {
+                harmonicCombinedHist[i] = resampledSepHist[i] + 0.25f * resampledSepHist[ii - 1]
+                        + 0.5f * resampledSepHist[ii] + 0.25f * resampledSepHist[ii + 1];
+            }
+        }
+        return harmonicCombinedHist;
+    }
+}
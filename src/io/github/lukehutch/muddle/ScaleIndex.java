@@ -0,0 +1,134 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.util.Arrays;
+
+/**
+ * Index for output-sensitive queries of the form "the local minima (or maxima) with extent >= scale in the data
+ * index range [t0, t1)", built once from an extent array.
+ * 
+ * For each extremum type and each scale s in [1, maxRadius], the index stores the sorted data indices of the extrema
+ * with extent >= s, so a query takes two binary searches plus the time to copy out the k results, i.e. O[log n + k],
+ * and a count-only query takes O[log n]. Same-type extrema with extent >= s are more than s samples apart, so the list
+ * for scale s has O[n / s] entries, and the index has O[n log maxRadius] entries in total.
+ */
+public class ScaleIndex {
+    private final int maxRadius;
+    /** Data indices of minima and maxima, with the list for scale s in [offsets[s - 1], offsets[s]). */
+    private final int[] minIdxs, maxIdxs;
+    private final int[] minOffsets, maxOffsets;
+
+    /** Source of the extent of each data point, as a local min or max. */
+    interface ExtentSource {
+        int extent(int t, boolean isMax);
+    }
+
+    /** Build an index over the extents of a MUDDLEInverted decomposition. */
+    public ScaleIndex(MUDDLEInverted muddle) {
+        this(muddle.data.length(), muddle.maxRadius,
+                // A point with non-zero extent is not the last point, so has a successor to determine its type
+                (t, isMax) -> muddle.extent[t] > 0
+                        && (isMax ? muddle.data.greater(t, t + 1) : muddle.data.greater(t + 1, t))
+                                ? muddle.extent[t]
+                                : 0);
+    }
+
+    /** Build an index over the extents of local minima and maxima in a FusedExtents. */
+    public ScaleIndex(FusedExtents extents) {
+        this(extents.length(), extents.getMaxRadius(), extents::extent);
+    }
+
+    ScaleIndex(int n, int maxRadius, ExtentSource extents) {
+        this.maxRadius = maxRadius;
+        minOffsets = new int[maxRadius + 1];
+        maxOffsets = new int[maxRadius + 1];
+        minIdxs = build(n, maxRadius, extents, /* isMax = */false, minOffsets);
+        maxIdxs = build(n, maxRadius, extents, /* isMax = */true, maxOffsets);
+    }
+
+    private static int[] build(int n, int maxRadius, ExtentSource extents, boolean isMax, int[] offsets) {
+        // Count the extrema with extent == e, then accumulate so that offsets[s] - offsets[s - 1] is the number of
+        // extrema with extent >= s
+        int[] numWithExtentAtLeast = new int[maxRadius + 2];
+        for (int t = 0; t < n; t++) {
+            numWithExtentAtLeast[Math.min(extents.extent(t, isMax), maxRadius)]++;
+        }
+        for (int s = maxRadius - 1; s >= 1; s--) {
+            numWithExtentAtLeast[s] += numWithExtentAtLeast[s + 1];
+        }
+        for (int s = 1; s <= maxRadius; s++) {
+            offsets[s] = offsets[s - 1] + numWithExtentAtLeast[s];
+        }
+        // Append each extremum to the list of every scale up to its extent, in increasing order of data index
+        int[] idxs = new int[offsets[maxRadius]];
+        int[] writeIdx = Arrays.copyOf(offsets, maxRadius);
+        for (int t = 0; t < n; t++) {
+            for (int s = 1, e = Math.min(extents.extent(t, isMax), maxRadius); s <= e; s++) {
+                idxs[writeIdx[s - 1]++] = t;
+            }
+        }
+        return idxs;
+    }
+
+    public int getMaxRadius() {
+        return maxRadius;
+    }
+
+    /** The number of local minima (if isMax is false) or local maxima with extent >= scale. O[1]. */
+    public int count(int scale, boolean isMax) {
+        if (checkScale(scale) > maxRadius) {
+            return 0;
+        }
+        int[] offsets = isMax ? maxOffsets : minOffsets;
+        return offsets[scale] - offsets[scale - 1];
+    }
+
+    /** The number of local minima (or maxima) with extent >= scale in the data index range [t0, t1). O[log n]. */
+    public int count(int scale, boolean isMax, int t0, int t1) {
+        if (checkScale(scale) > maxRadius || t0 >= t1) {
+            return 0;
+        }
+        int[] idxs = isMax ? maxIdxs : minIdxs, offsets = isMax ? maxOffsets : minOffsets;
+        int lo = offsets[scale - 1], hi = offsets[scale];
+        return lowerBound(idxs, lo, hi, t1) - lowerBound(idxs, lo, hi, t0);
+    }
+
+    /**
+     * The data indices of the local minima (or maxima) with extent >= scale in the data index range [t0, t1), in
+     * increasing order. O[log n + k] for k results.
+     */
+    public int[] find(int scale, boolean isMax, int t0, int t1) {
+        if (checkScale(scale) > maxRadius || t0 >= t1) {
+            return new int[0];
+        }
+        int[] idxs = isMax ? maxIdxs : minIdxs, offsets = isMax ? maxOffsets : minOffsets;
+        int lo = offsets[scale - 1], hi = offsets[scale];
+        return Arrays.copyOfRange(idxs, lowerBound(idxs, lo, hi, t0), lowerBound(idxs, lo, hi, t1));
+    }
+
+    /** The first index in [lo, hi) of the sorted array with a value >= key, or hi if there is none. */
+    private static int lowerBound(int[] sorted, int lo, int hi, int key) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int checkScale(int scale) {
+        if (scale < 1) {
+            throw new IllegalArgumentException("scale must be at least 1");
+        }
+        return scale;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ * 
+ * Luke Hutchison, 2015
+ * 
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Per-thread allocation counter for MUDDLEMetrics. This is the only class that depends on the java.management and
+ * jdk.management modules, and it is only loaded by MUDDLEMetrics when the modules are present, so the library still
+ * links on runtimes without them.
+ */
+final class ThreadAllocation {
+    /** The HotSpot thread MXBean, or null if allocation counting is not supported. */
+    private static final com.sun.management.ThreadMXBean allocationMXBean;
+    static {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        allocationMXBean = threadMXBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threadMXBean).isThreadAllocatedMemorySupported()
+                        ? (com.sun.management.ThreadMXBean) threadMXBean
+                        : null;
+    }
+
+    private ThreadAllocation() {
+    }
+
+    static boolean isSupported() {
+        return allocationMXBean != null;
+    }
+
+    /** The number of bytes allocated by the calling thread so far, or 0 if not supported. */
+    static long allocatedBytes() {
+        return allocationMXBean == null ? 0 : allocationMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -7,12 +7,21 @@
  */
 package io.github.lukehutch.muddle;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.Random;
 
 import com.jmatio.io.MatFileReader;
 import com.jmatio.types.MLArray;
@@ -21,60 +30,248 @@ import com.jmatio.types.MLDouble;
 public class Utils {
 
     public static float[] createRandomData(int len) {
-        double period = 50;
-        double periodRandomSkewFactor = 0.05;
-        double amplitudeNoiseFactor = 1.5;
+        return createRandomData(len, new Random());
+    }
+
+    /** Create random data, reproducibly from the given seed. */
+    public static float[] createRandomData(int len, long seed) {
+        return createRandomData(len, new Random(seed));
+    }
+
+    private static float[] createRandomData(int len, Random random) {
+        return createRandomData(len, /* period = */50, /* periodRandomSkewFactor = */0.05,
+                /* amplitudeNoiseFactor = */1.5, random);
+    }
 
+    /**
+     * Create a sine wave of the given period, with the period randomly skewed at each step by up to
+     * +/-periodRandomSkewFactor/2, and uniform noise of amplitude amplitudeNoiseFactor added.
+     */
+    public static float[] createRandomData(int len, double period, double periodRandomSkewFactor,
+            double amplitudeNoiseFactor, Random random) {
         float[] data = new float[len];
         double phase = 0;
         for (int i = 0; i < len; i++) {
-            phase += (1 + (Math.random() - 0.5) * periodRandomSkewFactor) / period;
-            data[i] = (float) (Math.sin(2 * Math.PI * phase) + (Math.random() - 0.5) * amplitudeNoiseFactor);
+            phase += (1 + (random.nextDouble() - 0.5) * periodRandomSkewFactor) / period;
+            data[i] = (float) (Math.sin(2 * Math.PI * phase) + (random.nextDouble() - 0.5) * amplitudeNoiseFactor);
             // System.out.println(data[i]);
         }
         return data;
     }
 
+    /**
+     * Load a text file with one sample per line. Lines are parsed as they are read, directly into a growable float[],
+     * so no samples are boxed and the file is never held in memory as a whole.
+     */
     public static float[] loadData(String filename) {
-        try {
-            ArrayList<Float> vals = new ArrayList<>();
-            for (String line : Files.readAllLines(Paths.get(filename))) {
-                vals.add(Float.parseFloat(line));
-            }
-            float[] valsArr = new float[vals.size()];
-            for (int i = 0; i < vals.size(); i++) {
-                valsArr[i] = vals.get(i);
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.LOAD);
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(filename), StandardCharsets.UTF_8)) {
+            float[] vals = new float[1024];
+            int numVals = 0;
+            for (String line; (line = reader.readLine()) != null;) {
+                if (numVals == vals.length) {
+                    vals = Arrays.copyOf(vals, vals.length * 2);
+                }
+                vals[numVals++] = Float.parseFloat(line);
             }
-            return valsArr;
+            MUDDLEMetrics.end(span, numVals);
+            return Arrays.copyOf(vals, numVals);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Load one row of the single array in a .mat file. The samples are read directly from the file's backing
+     * buffer, without first materializing the whole array as a double[][].
+     */
     public static float[] loadMat(String filename, int row) {
-        MatFileReader reader;
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.LOAD);
+        MLDouble matArray = loadMatArray(filename);
+        int numRows = matArray.getM(), numCols = matArray.getN();
+        if (row < 0 || row >= numRows) {
+            throw new IllegalArgumentException("Row " + row + " out of range; array has " + numRows + " rows");
+        }
+        DoubleBuffer vals = realValues(matArray);
+        float[] data = new float[numCols];
+        // .mat arrays are stored in column-major order
+        for (int col = 0, i = row; col < numCols; col++, i += numRows) {
+            data[col] = (float) vals.get(i);
+        }
+        MUDDLEMetrics.end(span, numCols);
+        return data;
+    }
+
+    /**
+     * Load one row of the single array in a .mat file as a view of the double samples in the file's backing buffer,
+     * without converting the samples to float or copying them.
+     */
+    public static Samples loadMatSamples(String filename, int row) {
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.LOAD);
+        MLDouble matArray = loadMatArray(filename);
+        int numRows = matArray.getM(), numCols = matArray.getN();
+        if (row < 0 || row >= numRows) {
+            throw new IllegalArgumentException("Row " + row + " out of range; array has " + numRows + " rows");
+        }
+        // .mat arrays are stored in column-major order
+        Samples samples = Samples.of(realValues(matArray), row, numRows, numCols);
+        MUDDLEMetrics.end(span, numCols);
+        return samples;
+    }
+
+    /**
+     * Load all rows of the single array in a .mat file, returning one float[] per row (channel). The samples are
+     * read directly from the file's backing buffer, without first materializing the whole array as a double[][].
+     */
+    public static float[][] loadMatChannels(String filename) {
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.LOAD);
+        MLDouble matArray = loadMatArray(filename);
+        int numRows = matArray.getM(), numCols = matArray.getN();
+        float[][] channels = new float[numRows][numCols];
+        DoubleBuffer vals = realValues(matArray);
+        // .mat arrays are stored in column-major order
+        for (int col = 0, i = 0; col < numCols; col++) {
+            for (int row = 0; row < numRows; row++) {
+                channels[row][col] = (float) vals.get(i++);
+            }
+        }
+        MUDDLEMetrics.end(span, (long) numRows * numCols);
+        return channels;
+    }
+
+    /** Read the single double array in a .mat file. */
+    private static MLDouble loadMatArray(String filename) {
+        Map<String, MLArray> content;
         try {
-            reader = new MatFileReader(filename);
-            Map<String, MLArray> content = reader.getContent();
-            if (content.size() != 1) {
-                throw new RuntimeException("Expected one array; found " + content.size());
+            content = new MatFileReader(filename).getContent();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (content.size() != 1) {
+            throw new RuntimeException("Expected one array; found " + content.size());
+        }
+        return (MLDouble) content.values().iterator().next();
+    }
+
+    /** Get a view of the real part of a .mat array, in column-major order. */
+    private static DoubleBuffer realValues(MLDouble matArray) {
+        ByteBuffer buf = matArray.getRealByteBuffer();
+        return buf.duplicate().order(buf.order()).asDoubleBuffer();
+    }
+
+    /**
+     * Memory-map a raw binary file of little-endian float32 samples. The returned buffer reads directly from the
+     * file (via the OS page cache), so recordings can be processed without copying them onto the heap. Limited to
+     * files of up to 2GB (Integer.MAX_VALUE bytes); map larger files one window at a time with
+     * mapFloat32(filename, from, count).
+     */
+    public static FloatBuffer mapFloat32(String filename) {
+        return mapRaw(filename, 4, 0, -1).asFloatBuffer();
+    }
+
+    /**
+     * Memory-map count float32 samples of a raw binary file of little-endian float32 samples, starting at sample
+     * index from (which may be beyond 2^31, so files of any size can be read window by window). count * 4 must be at
+     * most Integer.MAX_VALUE. Each window is unmapped when its buffer is garbage collected.
+     */
+    public static FloatBuffer mapFloat32(String filename, long from, int count) {
+        return mapRaw(filename, 4, from, count).asFloatBuffer();
+    }
+
+    /** Memory-map a raw binary file of little-endian float64 samples. See mapFloat32. */
+    public static DoubleBuffer mapFloat64(String filename) {
+        return mapRaw(filename, 8, 0, -1).asDoubleBuffer();
+    }
+
+    /** Memory-map a window of count float64 samples, starting at sample index from. See mapFloat32. */
+    public static DoubleBuffer mapFloat64(String filename, long from, int count) {
+        return mapRaw(filename, 8, from, count).asDoubleBuffer();
+    }
+
+    /**
+     * Memory-map a raw binary file of little-endian int64 values (e.g. the output of a LongIndexFileSink). Limited to
+     * files of up to 2GB; map larger files one window at a time with mapInt64(filename, from, count).
+     */
+    public static LongBuffer mapInt64(String filename) {
+        return mapRaw(filename, 8, 0, -1).asLongBuffer();
+    }
+
+    /**
+     * Memory-map a window of count int64 values, starting at value index from, e.g. to read back a LongIndexFileSink
+     * file of more than 2^28 indices. See mapFloat32.
+     */
+    public static LongBuffer mapInt64(String filename, long from, int count) {
+        return mapRaw(filename, 8, from, count).asLongBuffer();
+    }
+
+    /**
+     * Map count samples of bytesPerSample bytes from sample index from, or the whole file if count is -1 (in which
+     * case from must be 0).
+     */
+    private static ByteBuffer mapRaw(String filename, int bytesPerSample, long from, int count) {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size % bytesPerSample != 0) {
+                throw new IllegalArgumentException(
+                        "File size " + size + " is not a multiple of " + bytesPerSample + " bytes: " + filename);
+            }
+            long numSamples = size / bytesPerSample;
+            long mapCount = count == -1 ? numSamples : count;
+            if (from < 0 || mapCount < 0 || from > numSamples - mapCount) {
+                throw new IndexOutOfBoundsException("Samples [" + from + ", " + (from + mapCount)
+                        + ") are out of range for a file of " + numSamples + " samples: " + filename);
+            }
+            if (mapCount * bytesPerSample > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Cannot map " + mapCount * bytesPerSample
+                        + " bytes at once (the limit is " + Integer.MAX_VALUE + ") -- map the file in windows: "
+                        + filename);
             }
-            for (MLArray matArray : content.values()) {
-                double[][] arr = ((MLDouble) matArray).getArray();
-                // for (int i = 0; i < arr[0].length; i++) {
-                // for (int j = 0; j < arr.length; j++) {
-                // System.out.print((j > 0 ? "\t" : "") + arr[j][i]);
-                // }
-                // System.out.println();
-                // }
-                float[] data = new float[arr[0].length];
-                for (int i = 0; i < arr[0].length; i++) {
-                    data[i] = (float) arr[row][i];
+            // The mapping remains valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, from * bytesPerSample, mapCount * bytesPerSample)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Load a raw binary file of little-endian float32 samples into a float[]. */
+    public static float[] loadFloat32(String filename) {
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.LOAD);
+        FloatBuffer buf = mapFloat32(filename);
+        float[] data = new float[buf.remaining()];
+        buf.get(data);
+        MUDDLEMetrics.end(span, data.length);
+        return data;
+    }
+
+    /** Load a raw binary file of little-endian float64 samples into a float[]. */
+    public static float[] loadFloat64(String filename) {
+        MUDDLEMetrics.Span span = MUDDLEMetrics.begin(MUDDLEMetrics.Phase.LOAD);
+        DoubleBuffer buf = mapFloat64(filename);
+        float[] data = new float[buf.remaining()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (float) buf.get(i);
+        }
+        MUDDLEMetrics.end(span, data.length);
+        return data;
+    }
+
+    /** Write samples to a raw binary file of little-endian float32 samples. */
+    public static void writeFloat32(String filename, float[] data) {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < data.length;) {
+                buf.clear();
+                while (i < data.length && buf.remaining() >= 4) {
+                    buf.putFloat(data[i++]);
+                }
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
                 }
-                return data;
             }
-            return null;
-        } catch (Exception e) {
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
@@ -88,43 +285,15 @@ public class Utils {
         
         data = Arrays.copyOf(data, 20000);
         
-        float[] hist = MUDDLE.generateAlternatingExtremumTypeFractionHistogram(data, 300);
-
-        
-        // Perform trapezoidal integration on function, using log x-axis, then find average value
-        // over interval x to 2x using the First Mean Value Theorem for Integrals:
-        // Mean = (F(2x) - F(x)) / (ln(2x) - ln(x)) = (F(2x) - F(x)) / ln(2)
-        float[] cumulLogHist = new float[hist.length];
-        float log_rMinus1 = 0.0f;
-        for (int r = 2; r < hist.length; r++) {
-            float log_r = (float) Math.log(r);
-            float trapArea = (log_r - log_rMinus1) * (hist[r] + hist[r - 1]) * 0.5f;
-            cumulLogHist[r] = cumulLogHist[r - 1] + trapArea;
-            log_rMinus1 = log_r;
-        }
-        float[] meanForHarmonicInterval = new float[hist.length / 2];
-        float maxMean = 0.0f;
-        int maxMeanRadius = 0;
-        float oneOverLog2 = (float) (1.0 / Math.log(2)), sqrt2 = (float) Math.sqrt(2);
-        for (int r = 1; r < meanForHarmonicInterval.length; r++) {
-            // For radius r, signal period is 2r + 1
-            // For radius 2r, signal period is 2(2r) + 1 = 4r + 1.
-            // => If signal period increases by (2r / r) = r, period increases by (4r + 1)/(2r + 1) = (2r + 1/2)/(r + 1/2).
-            // But this is close enough to 2r.
-            float mean = (cumulLogHist[r * 2] - cumulLogHist[r]) * oneOverLog2;
-            if (mean > maxMean) {
-                maxMean = mean;
-                maxMeanRadius = r;
-            }
+        RadiusEstimate estimate = RadiusEstimator.estimate(data, 300);
+        float sqrt2 = (float) Math.sqrt(2);
+        for (int r = 1; r < estimate.harmonicIntervalMean.length; r++) {
             // Radius at center of interval
             float rc = r * sqrt2;
-            System.out.println(r + "\t" + Math.log(r) + "\t" + hist[r] + "\t" + rc + "\t" + Math.log(rc) + "\t" + mean);
+            System.out.println(r + "\t" + Math.log(r) + "\t" + estimate.alternationHist[r] + "\t" + rc + "\t"
+                    + Math.log(rc) + "\t" + estimate.harmonicIntervalMean[r]);
         }
-        // Halfway through the interval of width ln(2) in the log domain occurs at an offset of
-        // e^(ln(2)/2) = e^(ln(2^(1/2))) = sqrt(2) from the start of the interval in the linear domain.
-        int optimalRadius = (int) Math.round(maxMeanRadius * sqrt2);
-        float natPeriod = 2 * maxMeanRadius + 2;  // N.B. would be more accurate if we used parabolic fit for maxMeanRadius
-        System.out.println("Max mean radius: " + maxMeanRadius + "; approx natural period: " + natPeriod + "; optimal radius: " + optimalRadius);
+        System.out.println(estimate);
         System.exit(1);
 
         // // float[] data = createRandomData(10000);
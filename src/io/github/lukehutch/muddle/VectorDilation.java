@@ -0,0 +1,74 @@
+/*
+ * Muddle: MUltiscale Decomposition by the DiLation of Extrema
+ *
+ * Luke Hutchison, 2015
+ *
+ * Available under MIT license.
+ */
+package io.github.lukehutch.muddle;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vectorized dense dilation for Extrema.dilateTo(), using the jdk.incubator.vector module. This is the only class
+ * that depends on the module. It is only compiled on JDK 16 or later (see the "vector" profile in pom.xml), and is
+ * only loaded (by name) by Extrema when the module is present at runtime (run with --add-modules
+ * jdk.incubator.vector), so the library still builds and runs without it, using the scalar kernels.
+ */
+final class VectorDilation implements Extrema.DenseKernel {
+    private static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+    /** An int species with the same number of lanes as FLOAT_SPECIES, for the extents. */
+    private static final VectorSpecies<Integer> INT_SPECIES = VectorSpecies.of(int.class,
+            FLOAT_SPECIES.vectorShape());
+
+    /**
+     * Each vector of lanes loads the samples at t, t - r and t + r and the extents at t from contiguous memory, so
+     * the cost is O[data.length / lanes] per radius, however many of the data points are live.
+     */
+    @Override
+    public int dilateLive(float[] data, boolean isMax, int r, int[] extent) {
+        int n = data.length, lanes = FLOAT_SPECIES.length();
+        // Data points whose neighbours at radius r are both within the data
+        int interiorStart = Math.min(r, n), interiorEnd = Math.max(n - r, interiorStart);
+        int numLive = dilateScalar(data, isMax, r, extent, 0, interiorStart);
+        int t = interiorStart;
+        for (int vectorEnd = t + FLOAT_SPECIES.loopBound(interiorEnd - t); t < vectorEnd; t += lanes) {
+            IntVector e = IntVector.fromArray(INT_SPECIES, extent, t);
+            VectorMask<Integer> live = e.compare(VectorOperators.EQ, r - 1);
+            if (!live.anyTrue()) {
+                continue;
+            }
+            FloatVector d = FloatVector.fromArray(FLOAT_SPECIES, data, t);
+            FloatVector left = FloatVector.fromArray(FLOAT_SPECIES, data, t - r);
+            FloatVector right = FloatVector.fromArray(FLOAT_SPECIES, data, t + r);
+            // Same as the test in dilate(), including for NaN, since every comparison with NaN is false
+            VectorMask<Float> dominated = isMax
+                    ? left.compare(VectorOperators.GT, d).or(right.compare(VectorOperators.GE, d))
+                    : left.compare(VectorOperators.LT, d).or(right.compare(VectorOperators.LE, d));
+            VectorMask<Integer> survived = live.andNot(dominated.cast(INT_SPECIES));
+            e.blend(r, survived).intoArray(extent, t);
+            numLive += survived.trueCount();
+        }
+        return numLive + dilateScalar(data, isMax, r, extent, t, n);
+    }
+
+    /** Same as dilateLive(), for the data points in [from, to), one at a time. */
+    private static int dilateScalar(float[] data, boolean isMax, int r, int[] extent, int from, int to) {
+        int numLive = 0;
+        for (int t = from; t < to; t++) {
+            if (extent[t] == r - 1) {
+                int tl = t - r, tr = t + r;
+                if (isMax ? !((tl >= 0 && data[tl] > data[t]) || (tr < data.length && data[tr] >= data[t]))
+                        : !((tl >= 0 && data[tl] < data[t]) || (tr < data.length && data[tr] <= data[t]))) {
+                    extent[t] = r;
+                    numLive++;
+                }
+            }
+        }
+        return numLive;
+    }
+}